@@ -0,0 +1,89 @@
+package core.peer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/*
+ * Minimal harness shared by the benchmarks under bench/. A case is run for a number of warm-up
+ * rounds, then for ROUNDS timed rounds of a fixed operation count, and the median round is
+ * reported as time and heap allocation per operation. The benchmarks live in core.peer so they
+ * can drive package-private code directly. From the repository root:
+ *
+ *   javac -d out $(find src bench -name '*.java')
+ *   java -cp out core.peer.CodecBench
+ */
+class Bench
+{
+    interface Case
+    {
+        // Runs one operation and returns a value that depends on its result, so the work
+        // cannot be optimized away.
+        long Run() throws Exception;
+    }
+
+    static class Result
+    {
+        Result(double ns_per_op, double bytes_per_op)
+        {
+            this.ns_per_op = ns_per_op;
+            this.bytes_per_op = bytes_per_op;
+        }
+
+        final double ns_per_op;
+        final double bytes_per_op;
+    }
+
+    static Result Measure(String name, int ops, Case c) throws Exception
+    {
+        for(int i = 0; i < WARMUP_ROUNDS; i++)
+            Round(c, ops);
+
+        double[] ns = new double[ROUNDS];
+        double[] bytes = new double[ROUNDS];
+
+        for(int i = 0; i < ROUNDS; i++)
+        {
+            long allocated = Allocated();
+            long start = System.nanoTime();
+
+            Round(c, ops);
+
+            ns[i] = (double) (System.nanoTime() - start) / ops;
+            bytes[i] = (double) (Allocated() - allocated) / ops;
+        }
+
+        Arrays.sort(ns);
+        Arrays.sort(bytes);
+
+        Result result = new Result(ns[ROUNDS / 2], bytes[ROUNDS / 2]);
+        System.out.format("%-25s [%12.1f ns/op, %10.0f B/op]\n", name + ":", result.ns_per_op, result.bytes_per_op);
+        return result;
+    }
+
+    static void Speedup(String name, Result before, Result after)
+    {
+        System.out.format("%-25s [%12.1fx faster, %.0f -> %.0f B/op]\n", name + ":", before.ns_per_op / after.ns_per_op,
+                          before.bytes_per_op, after.bytes_per_op);
+    }
+
+    private static void Round(Case c, int ops) throws Exception
+    {
+        long sink = 0;
+        for(int i = 0; i < ops; i++)
+            sink += c.Run();
+        m_sink += sink;
+    }
+
+    private static long Allocated()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    // Read by nobody; keeps the JIT from discarding the measured work.
+    static volatile long m_sink;
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 9;
+
+    private Bench() {}
+}
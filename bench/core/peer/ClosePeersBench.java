@@ -0,0 +1,610 @@
+package core.peer;
+
+import core.Lib;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/*
+ * Benchmarks GetClosePeers on routing tables filled with random peers, asking for the k closest
+ * to random targets.
+ *
+ * Node ids: the full scan as it was with BigInteger ids, against the same scan once ids became
+ * NodeId. Both are kept here as they were committed, over the TreeMap of buckets of that time,
+ * so that only the id representation differs, and checked to return the same peers. Targets
+ * are never ids in the table: the BigInteger scan compared ids by reference and could return
+ * the target itself. Run at the configured 8-bit id space.
+ *
+ * Scaling: the scan over the KBucket array as it was before the bucket walk, against
+ * Peer.GetClosePeers, on 64-bit ids up to 100k entries. Buckets are first left unbounded so the
+ * table holds every peer, then bounded to k as Peer configures them. The walk is checked against
+ * a sort of the whole table; the old scan is not, as it did not return the exact k closest.
+ */
+class ClosePeersBench
+{
+    public static void main(String[] args) throws Exception
+    {
+        CompareNodeIds();
+        CompareScaling();
+    }
+
+    private static void CompareNodeIds() throws Exception
+    {
+        for(int peers : new int[] { 20, 100, 255 })
+        {
+            Random random = new Random(peers);
+            long self = random.nextInt(1 << ID_BITS);
+            long[] ids = RandomIds(random, ID_BITS, peers, self);
+            long[] targets = RandomTargets(random, ID_BITS, ids);
+
+            BigIntegerTable big_integer_table = new BigIntegerTable(ID_BITS);
+            NodeIdTable node_id_table = new NodeIdTable(ID_BITS);
+
+            for(long id : ids)
+            {
+                big_integer_table.Insert(new BigIntegerEntry("peer", BigInteger.valueOf(id), "10.0.0.1", (int) id));
+                node_id_table.Insert(new Peer.RoutingTableEntry("peer", new NodeId(id), "10.0.0.1", (int) id));
+            }
+
+            for(long target : targets)
+            {
+                if(!Arrays.equals(Ids(big_integer_table.GetClosePeers(BigInteger.valueOf(target), K)),
+                                  Ids(node_id_table.GetClosePeers(new NodeId(target), K))))
+                    throw new IllegalStateException("Results differ for target " + target);
+            }
+
+            System.out.println("Node ids, m = " + ID_BITS + ", " + peers + " peers, k = " + K + "\n----------------");
+
+            int[] next = new int[1];
+            Bench.Result before = Bench.Measure("BigInteger", OPS, () ->
+                big_integer_table.GetClosePeers(BigInteger.valueOf(targets[next[0]++ & (TARGETS - 1)]), K).length);
+            Bench.Result after = Bench.Measure("NodeId", OPS, () ->
+                node_id_table.GetClosePeers(new NodeId(targets[next[0]++ & (TARGETS - 1)]), K).length);
+
+            Bench.Speedup("NodeId", before, after);
+            System.out.println("----------------");
+        }
+    }
+
+    private static void CompareScaling() throws Exception
+    {
+        for(boolean bounded : new boolean[] { false, true })
+        {
+            for(int peers : new int[] { 1_000, 10_000, 100_000 })
+            {
+                Random random = new Random(peers);
+                NodeId self = new NodeId(random.nextLong());
+                long[] ids = RandomIds(random, Long.SIZE, peers, self.Value());
+                long[] targets = RandomTargets(random, Long.SIZE, ids);
+                KBucket[] table = new KBucket[Long.SIZE];
+
+                for(int i = 0; i < table.length; i++)
+                    table[i] = bounded ? new KBucket(K, K) : new KBucket(peers, 0);
+
+                for(long id : ids)
+                    table[Math.max(0, self.Bucket(new NodeId(id)))].Touch(new Peer.RoutingTableEntry("peer", new NodeId(id), "10.0.0.1", (int) id));
+
+                ScanTable scan_table = new ScanTable(table);
+                ArrayList<Peer.RoutingTableEntry> entries = new ArrayList<>();
+
+                for(KBucket bucket : table)
+                    entries.addAll(Arrays.asList(bucket.Entries()));
+
+                for(int i = 0; i < CHECKED_TARGETS; i++)
+                {
+                    NodeId target = new NodeId(targets[i]);
+                    entries.sort((a, b) -> target.CompareDistance(a.id, b.id));
+
+                    if(!Arrays.equals(Ids(entries.subList(0, K).toArray(new Peer.RoutingTableEntry[0])),
+                                      Ids(Peer.GetClosePeers(table, self, target, K))))
+                        throw new IllegalStateException("Bucket walk missed the closest peers of " + target);
+                }
+
+                System.out.println((bounded ? "Buckets of k, " + peers + " peers offered, " : "Unbounded buckets, ")
+                                   + entries.size() + " entries, k = " + K + "\n----------------");
+
+                int ops = bounded ? OPS : Math.max(20, 2_000_000 / peers);
+                int[] next = new int[1];
+                Bench.Result before = Bench.Measure("Full scan", ops, () ->
+                    scan_table.GetClosePeers(new NodeId(targets[next[0]++ & (TARGETS - 1)]), K).length);
+                Bench.Result after = Bench.Measure("Bucket walk", ops, () ->
+                    Peer.GetClosePeers(table, self, new NodeId(targets[next[0]++ & (TARGETS - 1)]), K).length);
+
+                Bench.Speedup("Bucket walk", before, after);
+                System.out.println("----------------");
+            }
+        }
+    }
+
+    // Distinct random ids of the given width, excluding the given one.
+    static long[] RandomIds(Random random, int bits, int count, long excluded)
+    {
+        HashSet<Long> seen = new HashSet<>();
+        long[] ids = new long[count];
+
+        for(int i = 0; i < count; )
+        {
+            long id = random.nextLong() & Mask(bits);
+            if(id != excluded && seen.add(id))
+                ids[i++] = id;
+        }
+        return ids;
+    }
+
+    // Random ids, not necessarily distinct, that are not in the table.
+    static long[] RandomTargets(Random random, int bits, long[] ids)
+    {
+        HashSet<Long> in_table = new HashSet<>();
+        for(long id : ids)
+            in_table.add(id);
+
+        long[] targets = new long[TARGETS];
+
+        for(int i = 0; i < TARGETS; )
+        {
+            long target = random.nextLong() & Mask(bits);
+            if(!in_table.contains(target))
+                targets[i++] = target;
+        }
+        return targets;
+    }
+
+    private static long Mask(int bits)
+    {
+        return (bits == 64) ? -1L : (1L << bits) - 1;
+    }
+
+    private static long[] Ids(BigIntegerEntry[] entries)
+    {
+        long[] ids = new long[entries.length];
+        for(int i = 0; i < entries.length; i++)
+            ids[i] = entries[i].id.longValue();
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    static long[] Ids(Peer.RoutingTableEntry[] entries)
+    {
+        long[] ids = new long[entries.length];
+        for(int i = 0; i < entries.length; i++)
+            ids[i] = entries[i].id.Value();
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    // The routing table entry as it was before NodeId.
+    private static class BigIntegerEntry
+    {
+        BigIntegerEntry(String nick_name, BigInteger id, String ip_address, int port)
+        {
+            this.nick_name = nick_name;
+            this.id = id;
+            this.ip_address = ip_address;
+            this.port = port;
+        }
+
+        @Override
+        public boolean equals(Object in)
+        {
+            if (!(in instanceof BigIntegerEntry)) {
+                return false;
+            }
+
+            BigIntegerEntry e = (BigIntegerEntry)in;
+            return this.id.equals(e.id) &&
+                   this.port == e.port &&
+                   this.ip_address.equals(e.ip_address);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return id.hashCode();
+        }
+
+        String nick_name;
+        BigInteger id;
+        int port;
+        String ip_address;
+    }
+
+    // Peer's routing table and GetClosePeers before NodeId.
+    private static class BigIntegerTable
+    {
+        BigIntegerTable(int m_bits)
+        {
+            this.m_m_bits = m_bits;
+            this.m_routing_table = new TreeMap<>();
+
+            for(int i = 0; i < m_m_bits; i++)
+                this.m_routing_table.put(BigInteger.valueOf(1).shiftLeft(i), new TreeMap<>());
+        }
+
+        void Insert(BigIntegerEntry entry)
+        {
+            this.m_routing_table.get(DetermineBucket(entry.id)).put(entry.id, entry);
+        }
+
+        BigIntegerEntry[] GetClosePeers(BigInteger peer_id, int amt)
+        {
+            BigInteger total = GetTotalPeersInRoutingTable(peer_id);
+            boolean take_all = total.compareTo(BigInteger.valueOf(amt)) <= 0;
+
+            ArrayList<BigIntegerEntry> all_peers = new ArrayList<>();
+            ArrayList<BigIntegerEntry> remaining_peers = new ArrayList<>();
+
+            for(int i = 0; i < m_m_bits; i++)
+            {
+                Lib.Pair<BigIntegerEntry[], BigIntegerEntry[]> bucket_peers = GetClosePeersFromBucket(peer_id, BigInteger.valueOf(1).shiftLeft(i), take_all);
+                if(bucket_peers.first != null) {
+                    all_peers.addAll(Arrays.asList(bucket_peers.first));
+                }
+
+                if(bucket_peers.second != null) {
+                    remaining_peers.addAll(Arrays.asList(bucket_peers.second));
+                }
+            }
+
+            if(!take_all && all_peers.size() < amt)
+            {
+                int diff = Math.abs(all_peers.size() - amt);
+
+                while(diff > 0)
+                {
+                    int curr_closest_peer_idx = GetRemainingClosestPeers(peer_id, remaining_peers);
+
+                    all_peers.add(remaining_peers.get(curr_closest_peer_idx));
+                    remaining_peers.remove(curr_closest_peer_idx);
+                    diff--;
+                }
+            }
+
+            return all_peers.toArray(new BigIntegerEntry[all_peers.size()]);
+        }
+
+        private Lib.Pair<BigIntegerEntry[], BigIntegerEntry[]> GetClosePeersFromBucket(BigInteger peer_id, BigInteger bucket_id, boolean take_all)
+        {
+            ArrayList<BigIntegerEntry> peers = new ArrayList<>();
+            ArrayList<BigIntegerEntry> remaining_peers = new ArrayList<>();
+
+            BigInteger closest_peer_dist = BigInteger.valueOf(Integer.MAX_VALUE);
+            BigInteger closest_peer = BigInteger.valueOf(-1);
+
+            for(var peer : this.m_routing_table.get(bucket_id).entrySet())
+            {
+                if(!take_all)
+                {
+                    if(Distance(peer_id, peer.getKey()).compareTo(closest_peer_dist) < 0 && !Objects.equals(peer.getKey(),peer_id))
+                    {
+                        closest_peer_dist = Distance(peer_id, peer.getKey());
+                        closest_peer = peer.getKey();
+                    }
+                } else peers.add(peer.getValue());
+                remaining_peers.add(peer.getValue());
+            }
+
+            if(!take_all && !Objects.equals(closest_peer, (BigInteger.valueOf(-1))))
+                peers.add(this.m_routing_table.get(bucket_id).get(closest_peer));
+
+            for (BigIntegerEntry peer : peers)
+                remaining_peers.remove(peer);
+
+            return new Lib.Pair<>(peers.isEmpty() ? null : peers.toArray(new BigIntegerEntry[peers.size()]),
+                                  remaining_peers.isEmpty() ? null : remaining_peers.toArray(new BigIntegerEntry[remaining_peers.size()]));
+        }
+
+        private int GetRemainingClosestPeers(BigInteger peer_id, ArrayList<BigIntegerEntry> remaining_peers)
+        {
+            BigInteger curr_closest_peer_dist = BigInteger.valueOf(Integer.MAX_VALUE);
+
+            int curr_closest_idx = -1;
+            for (int i = 0; i < remaining_peers.size(); i++)
+            {
+                if (Distance(peer_id, remaining_peers.get(i).id).compareTo(curr_closest_peer_dist) < 0 && remaining_peers.get(i).id != peer_id) {
+                    curr_closest_peer_dist = Distance(peer_id, remaining_peers.get(i).id);
+                    curr_closest_idx = i;
+                }
+            }
+            return curr_closest_idx;
+        }
+
+        private BigInteger GetTotalPeersInRoutingTable(BigInteger peer_id)
+        {
+            BigInteger sum = BigInteger.valueOf(0);
+
+            for(var bucket : this.m_routing_table.entrySet())
+            {
+                int bias = 0;
+                if(bucket.getValue().get(peer_id) != null)
+                    bias = -1;
+
+                sum = sum.add(BigInteger.valueOf(bucket.getValue().size()).add(BigInteger.valueOf(bias)));
+            }
+
+            return sum;
+        }
+
+        private BigInteger Distance(BigInteger peer_id_1, BigInteger peer_id_2)
+        {
+            return peer_id_1.xor(peer_id_2);
+        }
+
+        private BigInteger DetermineBucket(BigInteger id)
+        {
+            BigInteger min = Distance(BigInteger.valueOf(1), id);
+            BigInteger min_pow = BigInteger.valueOf(1);
+
+            for(int i = 0; i < m_m_bits; i++)
+            {
+                if(Distance(BigInteger.valueOf(1).shiftLeft(i), id).compareTo(min) < 0)
+                {
+                    min = Distance(BigInteger.valueOf(1).shiftLeft(i), id);
+                    min_pow = BigInteger.valueOf(1).shiftLeft(i);
+                }
+            }
+            return min_pow;
+        }
+
+        private final int m_m_bits;
+        private final NavigableMap<BigInteger, NavigableMap<BigInteger, BigIntegerEntry>> m_routing_table;
+    }
+
+    // The same table and scan once ids became NodeId.
+    private static class NodeIdTable
+    {
+        NodeIdTable(int m_bits)
+        {
+            this.m_m_bits = m_bits;
+            this.m_routing_table = new TreeMap<>();
+            this.m_bucket_ids = new NodeId[m_m_bits];
+
+            for(int i = 0; i < m_m_bits; i++)
+            {
+                this.m_bucket_ids[i] = new NodeId(1L << i);
+                this.m_routing_table.put(m_bucket_ids[i], new TreeMap<>());
+            }
+        }
+
+        void Insert(Peer.RoutingTableEntry entry)
+        {
+            this.m_routing_table.get(DetermineBucket(entry.id)).put(entry.id, entry);
+        }
+
+        Peer.RoutingTableEntry[] GetClosePeers(NodeId peer_id, int amt)
+        {
+            int total = GetTotalPeersInRoutingTable(peer_id);
+            boolean take_all = total <= amt;
+
+            ArrayList<Peer.RoutingTableEntry> all_peers = new ArrayList<>();
+            ArrayList<Peer.RoutingTableEntry> remaining_peers = new ArrayList<>();
+
+            for(int i = 0; i < m_m_bits; i++)
+            {
+                Lib.Pair<Peer.RoutingTableEntry[], Peer.RoutingTableEntry[]> bucket_peers = GetClosePeersFromBucket(peer_id, m_bucket_ids[i], take_all);
+                if(bucket_peers.first != null) {
+                    all_peers.addAll(Arrays.asList(bucket_peers.first));
+                }
+
+                if(bucket_peers.second != null) {
+                    remaining_peers.addAll(Arrays.asList(bucket_peers.second));
+                }
+            }
+
+            if(!take_all && all_peers.size() < amt)
+            {
+                int diff = Math.abs(all_peers.size() - amt);
+
+                while(diff > 0)
+                {
+                    int curr_closest_peer_idx = GetRemainingClosestPeers(peer_id, remaining_peers);
+
+                    all_peers.add(remaining_peers.get(curr_closest_peer_idx));
+                    remaining_peers.remove(curr_closest_peer_idx);
+                    diff--;
+                }
+            }
+
+            return all_peers.toArray(new Peer.RoutingTableEntry[all_peers.size()]);
+        }
+
+        private Lib.Pair<Peer.RoutingTableEntry[], Peer.RoutingTableEntry[]> GetClosePeersFromBucket(NodeId peer_id, NodeId bucket_id, boolean take_all)
+        {
+            ArrayList<Peer.RoutingTableEntry> peers = new ArrayList<>();
+            ArrayList<Peer.RoutingTableEntry> remaining_peers = new ArrayList<>();
+
+            long closest_peer_dist = -1L;
+            NodeId closest_peer = null;
+
+            for(var peer : this.m_routing_table.get(bucket_id).entrySet())
+            {
+                if(!take_all)
+                {
+                    if(Long.compareUnsigned(peer_id.Distance(peer.getKey()), closest_peer_dist) < 0 && !peer.getKey().equals(peer_id))
+                    {
+                        closest_peer_dist = peer_id.Distance(peer.getKey());
+                        closest_peer = peer.getKey();
+                    }
+                } else peers.add(peer.getValue());
+                remaining_peers.add(peer.getValue());
+            }
+
+            if(!take_all && closest_peer != null)
+                peers.add(this.m_routing_table.get(bucket_id).get(closest_peer));
+
+            for (Peer.RoutingTableEntry peer : peers)
+                remaining_peers.remove(peer);
+
+            return new Lib.Pair<>(peers.isEmpty() ? null : peers.toArray(new Peer.RoutingTableEntry[peers.size()]),
+                                  remaining_peers.isEmpty() ? null : remaining_peers.toArray(new Peer.RoutingTableEntry[remaining_peers.size()]));
+        }
+
+        private int GetRemainingClosestPeers(NodeId peer_id, ArrayList<Peer.RoutingTableEntry> remaining_peers)
+        {
+            long curr_closest_peer_dist = -1L;
+
+            int curr_closest_idx = -1;
+            for (int i = 0; i < remaining_peers.size(); i++)
+            {
+                if (Long.compareUnsigned(peer_id.Distance(remaining_peers.get(i).id), curr_closest_peer_dist) < 0 && !remaining_peers.get(i).id.equals(peer_id)) {
+                    curr_closest_peer_dist = peer_id.Distance(remaining_peers.get(i).id);
+                    curr_closest_idx = i;
+                }
+            }
+            return curr_closest_idx;
+        }
+
+        private int GetTotalPeersInRoutingTable(NodeId peer_id)
+        {
+            int sum = 0;
+
+            for(var bucket : this.m_routing_table.entrySet())
+            {
+                int bias = 0;
+                if(bucket.getValue().get(peer_id) != null)
+                    bias = -1;
+
+                sum += bucket.getValue().size() + bias;
+            }
+
+            return sum;
+        }
+
+        private NodeId DetermineBucket(NodeId id)
+        {
+            long min = m_bucket_ids[0].Distance(id);
+            NodeId min_pow = m_bucket_ids[0];
+
+            for(int i = 0; i < m_m_bits; i++)
+            {
+                if(Long.compareUnsigned(m_bucket_ids[i].Distance(id), min) < 0)
+                {
+                    min = m_bucket_ids[i].Distance(id);
+                    min_pow = m_bucket_ids[i];
+                }
+            }
+            return min_pow;
+        }
+
+        private final int m_m_bits;
+        private final NodeId[] m_bucket_ids;
+        private final NavigableMap<NodeId, NavigableMap<NodeId, Peer.RoutingTableEntry>> m_routing_table;
+    }
+
+    // Peer's GetClosePeers over the KBucket array before the bucket walk.
+    private static class ScanTable
+    {
+        ScanTable(KBucket[] routing_table)
+        {
+            this.m_routing_table = routing_table;
+            this.m_m_bits = routing_table.length;
+        }
+
+        Peer.RoutingTableEntry[] GetClosePeers(NodeId peer_id, int amt)
+        {
+            int total = GetTotalPeersInRoutingTable(peer_id);
+            boolean take_all = total <= amt;
+
+            ArrayList<Peer.RoutingTableEntry> all_peers = new ArrayList<>();
+            ArrayList<Peer.RoutingTableEntry> remaining_peers = new ArrayList<>();
+
+            for(int i = 0; i < m_m_bits; i++)
+            {
+                Lib.Pair<Peer.RoutingTableEntry[], Peer.RoutingTableEntry[]> bucket_peers = GetClosePeersFromBucket(peer_id, m_routing_table[i], take_all);
+                if(bucket_peers.first != null) {
+                    all_peers.addAll(Arrays.asList(bucket_peers.first));
+                }
+
+                if(bucket_peers.second != null) {
+                    remaining_peers.addAll(Arrays.asList(bucket_peers.second));
+                }
+            }
+
+            if(!take_all && all_peers.size() < amt)
+            {
+                int diff = Math.abs(all_peers.size() - amt);
+
+                while(diff > 0)
+                {
+                    int curr_closest_peer_idx = GetRemainingClosestPeers(peer_id, remaining_peers);
+
+                    all_peers.add(remaining_peers.get(curr_closest_peer_idx));
+                    remaining_peers.remove(curr_closest_peer_idx);
+                    diff--;
+                }
+            }
+
+            return all_peers.toArray(new Peer.RoutingTableEntry[all_peers.size()]);
+        }
+
+        private Lib.Pair<Peer.RoutingTableEntry[], Peer.RoutingTableEntry[]> GetClosePeersFromBucket(NodeId peer_id, KBucket bucket, boolean take_all)
+        {
+            ArrayList<Peer.RoutingTableEntry> peers = new ArrayList<>();
+            ArrayList<Peer.RoutingTableEntry> remaining_peers = new ArrayList<>();
+
+            long closest_peer_dist = -1L;
+            Peer.RoutingTableEntry closest_peer = null;
+
+            for(var peer : bucket.Entries())
+            {
+                if(!take_all)
+                {
+                    if(Long.compareUnsigned(peer_id.Distance(peer.id), closest_peer_dist) < 0 && !peer.id.equals(peer_id))
+                    {
+                        closest_peer_dist = peer_id.Distance(peer.id);
+                        closest_peer = peer;
+                    }
+                } else peers.add(peer);
+                remaining_peers.add(peer);
+            }
+
+            if(!take_all && closest_peer != null)
+                peers.add(closest_peer);
+
+            for (Peer.RoutingTableEntry peer : peers)
+                remaining_peers.remove(peer);
+
+            return new Lib.Pair<>(peers.isEmpty() ? null : peers.toArray(new Peer.RoutingTableEntry[peers.size()]),
+                                  remaining_peers.isEmpty() ? null : remaining_peers.toArray(new Peer.RoutingTableEntry[remaining_peers.size()]));
+        }
+
+        private int GetRemainingClosestPeers(NodeId peer_id, ArrayList<Peer.RoutingTableEntry> remaining_peers)
+        {
+            long curr_closest_peer_dist = -1L;
+
+            int curr_closest_idx = -1;
+            for (int i = 0; i < remaining_peers.size(); i++)
+            {
+                if (Long.compareUnsigned(peer_id.Distance(remaining_peers.get(i).id), curr_closest_peer_dist) < 0 && !remaining_peers.get(i).id.equals(peer_id)) {
+                    curr_closest_peer_dist = peer_id.Distance(remaining_peers.get(i).id);
+                    curr_closest_idx = i;
+                }
+            }
+            return curr_closest_idx;
+        }
+
+        private int GetTotalPeersInRoutingTable(NodeId peer_id)
+        {
+            int sum = 0;
+
+            for(var bucket : this.m_routing_table)
+            {
+                int bias = 0;
+                if(bucket.Contains(peer_id))
+                    bias = -1;
+
+                sum += bucket.Size() + bias;
+            }
+
+            return sum;
+        }
+
+        private final KBucket[] m_routing_table;
+        private final int m_m_bits;
+    }
+
+    static final int K = 20;
+    private static final int ID_BITS = 8;
+    static final int TARGETS = 1024;
+    private static final int CHECKED_TARGETS = 64;
+    private static final int OPS = 20_000;
+}
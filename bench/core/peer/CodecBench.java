@@ -0,0 +1,272 @@
+package core.peer;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/*
+ * Compares the binary frame and Codec against the text header plus Java serialization messages
+ * they replaced, for a FIND_NODE_REQUEST, a FIND_NODE_RESPONSE carrying k entries and a STORE of
+ * a 1 KiB value.
+ *
+ * The old path is reproduced as it ran: BindCommand wrote "COMMAND:count " and an
+ * ObjectOutputStream of the payload; on receipt Receiver.AddPayload, Kademlia.HandleCommand and
+ * the handler each turned the whole datagram into a String, stripped the NULs and split it,
+ * before the handler read the tail through an ObjectInputStream. The old receiver also handed
+ * over the full 64 KiB packet buffer rather than the bytes received, so the receive path is
+ * measured twice: codec only, on exactly the bytes sent, and as a datagram would be handled.
+ */
+class CodecBench
+{
+    // Serializable shapes of the old RoutingTableEntry and DataItem.
+    static class RoutingTableEntry implements Serializable
+    {
+        RoutingTableEntry(String nick_name, BigInteger id, String ip_address, int port)
+        {
+            this.nick_name = nick_name;
+            this.id = id;
+            this.ip_address = ip_address;
+            this.port = port;
+        }
+
+        public String nick_name;
+        public BigInteger id;
+        public int port;
+        public String ip_address;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    static class DataItem<T> implements Serializable
+    {
+        DataItem(String k, T v, boolean is_file)
+        {
+            this.is_file = is_file;
+            this.key = k;
+            this.value = v;
+            this.unix_timestamp = System.nanoTime();
+        }
+
+        public boolean is_file;
+        public T value;
+        public String key;
+        public long unix_timestamp;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Random random = new Random(42);
+
+        Peer.RoutingTableEntry[] entries = new Peer.RoutingTableEntry[K];
+        RoutingTableEntry[] legacy_entries = new RoutingTableEntry[K];
+
+        for(int i = 0; i < K; i++)
+        {
+            String nick_name = "peer" + i;
+            long id = random.nextLong() & 0xFF;
+            String ip_address = "10.0." + random.nextInt(256) + "." + random.nextInt(256);
+            int port = 49152 + random.nextInt(16384);
+
+            entries[i] = new Peer.RoutingTableEntry(nick_name, new NodeId(id), ip_address, port);
+            legacy_entries[i] = new RoutingTableEntry(nick_name, BigInteger.valueOf(id), ip_address, port);
+        }
+
+        byte[] value = new byte[VALUE_SIZE];
+        random.nextBytes(value);
+
+        Peer.DataItem item = new Peer.DataItem("some-key", value, true);
+        item.version = 1;
+        DataItem<byte[]> legacy_item = new DataItem<>("some-key", value, true);
+
+        NodeId target = new NodeId(random.nextLong() & 0xFF);
+        BigInteger legacy_target = BigInteger.valueOf(target.Value());
+
+        Message[] messages = {
+            new Message("FIND_NODE_REQUEST",
+                        () -> Encode(Opcode.FIND_NODE_REQUEST, target),
+                        () -> ("FIND_NODE_REQUEST:" + COUNT + " " + legacy_target).getBytes(),
+                        (tokens, message) -> new BigInteger(tokens[1]).intValue()),
+            new Message("FIND_NODE_RESPONSE",
+                        () -> Encode(Opcode.FIND_NODE_RESPONSE, entries),
+                        () -> LegacyBind("FIND_NODE_RESPONSE:" + COUNT + " ", legacy_entries),
+                        (tokens, message) -> ((RoutingTableEntry[]) LegacyRead(tokens, message)).length),
+            new Message("STORE",
+                        () -> Encode(Opcode.STORE, item),
+                        () -> LegacyBind("STORE:" + COUNT + " ", legacy_item),
+                        (tokens, message) -> ((DataItem<?>) LegacyRead(tokens, message)).key.length())
+        };
+
+        for(Message message : messages)
+        {
+            byte[] wire = message.encode.Run();
+            byte[] legacy_wire = message.legacy_encode.Run();
+            ByteBuffer pooled = ByteBuffer.allocate(MAX_RECEIVE_SIZE);
+
+            System.out.println(message.name + " [" + legacy_wire.length + " -> " + wire.length + " bytes]\n----------------");
+
+            Bench.Result old_encode = Bench.Measure("Encode (old)", OPS, () -> message.legacy_encode.Run().length);
+            Bench.Result new_encode = Bench.Measure("Encode (new)", OPS, () -> message.encode.Run().length);
+            Bench.Result old_decode = Bench.Measure("Decode (old)", OPS, () -> LegacyReceive(message, legacy_wire));
+            Bench.Result new_decode = Bench.Measure("Decode (new)", OPS, () -> Receive(ByteBuffer.wrap(wire)));
+            Bench.Result old_receive = Bench.Measure("Datagram (old)", OPS / 200, () -> LegacyReceive(message, LegacyPacket(legacy_wire)));
+            Bench.Result new_receive = Bench.Measure("Datagram (new)", OPS, () -> Receive(Packet(pooled, wire)));
+
+            Bench.Speedup("Encode", old_encode, new_encode);
+            Bench.Speedup("Decode", old_decode, new_decode);
+            Bench.Speedup("Datagram", old_receive, new_receive);
+            System.out.println("----------------");
+        }
+    }
+
+    private interface Encoder
+    {
+        byte[] Run() throws IOException;
+    }
+
+    private interface Reader
+    {
+        long Read(ByteBuffer payload);
+    }
+
+    private interface LegacyReader
+    {
+        long Read(String[] tokens, byte[] message) throws IOException, ClassNotFoundException;
+    }
+
+    private static class Message
+    {
+        Message(String name, Encoder encode, Encoder legacy_encode, LegacyReader legacy_read)
+        {
+            this.name = name;
+            this.encode = encode;
+            this.legacy_encode = legacy_encode;
+            this.legacy_read = legacy_read;
+        }
+
+        final String name;
+        final Encoder encode;
+        final Encoder legacy_encode;
+        final LegacyReader legacy_read;
+    }
+
+    // Peer.BindCommand for each payload type.
+    private static byte[] Encode(byte opcode, NodeId id)
+    {
+        ByteBuffer buffer = Frame.Allocate(opcode, COUNT, SENDER, Long.BYTES);
+        buffer.putLong(id.Value());
+        return buffer.array();
+    }
+
+    private static byte[] Encode(byte opcode, Peer.RoutingTableEntry[] entries)
+    {
+        ByteBuffer buffer = Frame.Allocate(opcode, COUNT, SENDER, Codec.SizeOf(entries));
+        Codec.Write(buffer, entries);
+        return buffer.array();
+    }
+
+    private static byte[] Encode(byte opcode, Peer.DataItem item)
+    {
+        ByteBuffer buffer = Frame.Allocate(opcode, COUNT, SENDER, Codec.SizeOf(item));
+        Codec.Write(buffer, item);
+        return buffer.array();
+    }
+
+    // Receiver decodes the frame, the Dispatcher picks the handler by opcode and the handler
+    // reads the payload.
+    private static long Receive(ByteBuffer datagram)
+    {
+        Frame frame = Frame.Decode(datagram);
+        Reader handler = HANDLERS[frame.opcode];
+        return frame.request_id + handler.Read(frame.payload);
+    }
+
+    private static ByteBuffer Packet(ByteBuffer pooled, byte[] wire)
+    {
+        pooled.clear();
+        pooled.put(wire);
+        return pooled.flip();
+    }
+
+    // The old Peer.BindCommand.
+    private static byte[] LegacyBind(String initial, Object serialized) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+
+        oos.writeObject(serialized);
+        oos.flush();
+
+        ByteBuffer buff = ByteBuffer.allocate(initial.getBytes().length + out.size());
+
+        buff.put(initial.getBytes());
+        buff.put(out.toByteArray());
+
+        return buff.array();
+    }
+
+    // The old Receiver allocated a 64 KiB packet per receive, checked the magic prefix and
+    // passed on a copy of everything after it.
+    private static byte[] LegacyPacket(byte[] legacy_wire)
+    {
+        byte[] packet = new byte[MAX_RECEIVE_SIZE];
+        System.arraycopy(LEGACY_MAGIC, 0, packet, 0, LEGACY_MAGIC.length);
+        System.arraycopy(legacy_wire, 0, packet, LEGACY_MAGIC.length, legacy_wire.length);
+
+        if(!Arrays.equals(Arrays.copyOf(packet, 4), LEGACY_MAGIC))
+            throw new IllegalStateException();
+        return Arrays.copyOfRange(packet, 4, packet.length);
+    }
+
+    // Receiver.AddPayload, Kademlia.HandleCommand and then the handler, each parsing the message.
+    private static long LegacyReceive(Message message, byte[] payload) throws IOException, ClassNotFoundException
+    {
+        String[] tokens = new String(payload).replace("\0", "").split(" ");
+        BigInteger command_count = new BigInteger(tokens[0].split(":")[1]);
+
+        tokens = new String(payload).replace("\0", "").split(" ");
+        String command_str = tokens[0].split(":")[0];
+
+        if(!LEGACY_COMMANDS.containsKey(command_str))
+            throw new IllegalStateException(command_str);
+
+        String[] message_string_tokens = new String(payload, StandardCharsets.UTF_8).replaceAll("\0", "").split(" ");
+        command_count = command_count.add(new BigInteger(message_string_tokens[0].split(":")[1]));
+
+        return command_count.longValue() + message.legacy_read.Read(message_string_tokens, payload);
+    }
+
+    private static Object LegacyRead(String[] message_string_tokens, byte[] message) throws IOException, ClassNotFoundException
+    {
+        ByteArrayInputStream in = new ByteArrayInputStream(Arrays.copyOfRange(message, message_string_tokens[0].length() + 1, message.length));
+        ObjectInputStream iis = new ObjectInputStream(in);
+        return iis.readObject();
+    }
+
+    private static final int K = 20;
+    private static final int VALUE_SIZE = 1024;
+    private static final int OPS = 20_000;
+    private static final long COUNT = 12345;
+    private static final long SENDER = 0x5A;
+    private static final int MAX_RECEIVE_SIZE = 1 << 16;
+    private static final byte[] LEGACY_MAGIC = ByteBuffer.allocate(4).putInt(0xF00DB33F).array();
+    private static final Reader[] HANDLERS = new Reader[Opcode.COUNT];
+    private static final HashMap<String, Integer> LEGACY_COMMANDS = new HashMap<>();
+
+    static
+    {
+        HANDLERS[Opcode.FIND_NODE_REQUEST] = payload -> payload.getLong();
+        HANDLERS[Opcode.FIND_NODE_RESPONSE] = payload -> Codec.ReadEntries(payload).length;
+        HANDLERS[Opcode.STORE] = payload -> Codec.ReadDataItem(payload).ValueLength();
+
+        for(String command : new String[] { "PING", "PONG", "CONNECT_REQUEST", "CONNECT_RESPONSE", "FIND_NODE_REQUEST",
+                                            "FIND_NODE_RESPONSE", "FIND_VALUE_REQUEST", "FIND_VALUE_RESPONSE",
+                                            "FIND_KEYS_REQUEST", "FIND_KEYS_RESPONSE", "STORE", "EXIT" })
+            LEGACY_COMMANDS.put(command, LEGACY_COMMANDS.size());
+    }
+}
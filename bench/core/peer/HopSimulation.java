@@ -0,0 +1,252 @@
+package core.peer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/*
+ * Simulates FIND_NODE lookups on networks of random nodes and compares hop counts between the
+ * old bucket choice, the highest set bit of the peer's id, and the current one, the highest bit
+ * in which the peer's id differs from our own (NodeId.Bucket).
+ *
+ * Every node's table holds up to k peers drawn at random from the ids that fall into each of its
+ * buckets, i.e. the table a node ends up with after hearing from the whole network. Lookups
+ * follow Lookup: a shortlist ordered by distance to the target, seeded with the k closest peers
+ * of the source at hop 1, queries to the closest unqueried peers alpha at a time, and a finish
+ * once the k closest have all answered. Each answer is the k closest peers of the queried node.
+ * A lookup counts as found when the node with the target id is among the k closest answered.
+ */
+class HopSimulation
+{
+    public static void main(String[] args)
+    {
+        System.out.println("Lookups, m = " + ID_BITS + ", k = " + K + ", alpha = " + ALPHA + ", " + LOOKUPS + " per network\n----------------");
+
+        for(int nodes : new int[] { 256, 1024, 4096, 16384, 65536 })
+        {
+            Random random = new Random(nodes);
+            long[] ids = ClosePeersBench.RandomIds(random, ID_BITS, nodes, -1);
+            Arrays.sort(ids);
+
+            System.out.format("%-25s [log2 n = %.1f]\n", nodes + " nodes:", Math.log(nodes) / Math.log(2));
+            Simulate("Highest set bit:", new Network(ids, false, random), random);
+            Simulate("Highest differing bit:", new Network(ids, true, random), random);
+        }
+        System.out.println("----------------");
+    }
+
+    private static void Simulate(String name, Network network, Random random)
+    {
+        int[] hops = new int[LOOKUPS];
+        long queried = 0;
+        int found = 0;
+
+        for(int i = 0; i < LOOKUPS; i++)
+        {
+            int source = random.nextInt(network.ids.length);
+            int target = random.nextInt(network.ids.length);
+
+            while(target == source)
+                target = random.nextInt(network.ids.length);
+
+            SimulatedLookup lookup = new SimulatedLookup(network, source, network.ids[target]);
+            lookup.Run();
+
+            hops[i] = lookup.hops;
+            queried += lookup.queried;
+            found += lookup.found ? 1 : 0;
+        }
+
+        Arrays.sort(hops);
+        System.out.format("%-25s [hops mean %.2f, p99 %d, max %d, queried %.1f, found %.1f%%]\n", name,
+                          Arrays.stream(hops).average().orElse(0), hops[LOOKUPS * 99 / 100], hops[LOOKUPS - 1],
+                          (double) queried / LOOKUPS, 100.0 * found / LOOKUPS);
+    }
+
+    private static class Network
+    {
+        // Builds every node's table from the sorted ids. Bucket b of a node holds a contiguous
+        // range of ids under either rule, so the peers can be sampled from that range directly.
+        Network(long[] ids, boolean differing_bit, Random random)
+        {
+            this.ids = ids;
+            this.tables = new long[ids.length][];
+
+            for(int node = 0; node < ids.length; node++)
+            {
+                List<Long> table = new ArrayList<>();
+                NodeId self = new NodeId(ids[node]);
+
+                for(int bucket = 0; bucket < ID_BITS; bucket++)
+                {
+                    long low, high;
+
+                    if(differing_bit)
+                    {
+                        low = (ids[node] ^ (1L << bucket)) & ~((1L << bucket) - 1);
+                        high = low + (1L << bucket) - 1;
+                    }
+                    else
+                    {
+                        low = (bucket == 0) ? 0 : 1L << bucket;
+                        high = (1L << (bucket + 1)) - 1;
+                    }
+
+                    for(long peer : Sample(low, high, node, random))
+                    {
+                        if(differing_bit && self.Bucket(new NodeId(peer)) != bucket)
+                            throw new IllegalStateException("Peer " + peer + " is not in bucket " + bucket + " of " + self);
+                        table.add(peer);
+                    }
+                }
+
+                this.tables[node] = table.stream().mapToLong(Long::longValue).toArray();
+            }
+        }
+
+        // Up to K ids in [low, high] other than the node's own, chosen at random.
+        private List<Long> Sample(long low, long high, int node, Random random)
+        {
+            int from = Index(low);
+            int to = Index(high + 1);
+            List<Long> sample = new ArrayList<>();
+
+            if(to - from - ((from <= node && node < to) ? 1 : 0) <= K)
+            {
+                for(int i = from; i < to; i++)
+                {
+                    if(i != node)
+                        sample.add(ids[i]);
+                }
+                return sample;
+            }
+
+            HashSet<Integer> chosen = new HashSet<>();
+            while(chosen.size() < K)
+            {
+                int i = from + random.nextInt(to - from);
+                if(i != node && chosen.add(i))
+                    sample.add(ids[i]);
+            }
+            return sample;
+        }
+
+        // Index of the first id not below the given one.
+        private int Index(long id)
+        {
+            int i = Arrays.binarySearch(ids, id);
+            return (i >= 0) ? i : -i - 1;
+        }
+
+        // The K peers of the node closest to the target, nearest first.
+        long[] ClosePeers(int node, long target)
+        {
+            long[] table = tables[node];
+            long[] keyed = new long[table.length];
+
+            // Ids and distances fit in 32 bits, so both sort as one long; the flipped sign bit
+            // makes the signed sort order them as unsigned.
+            for(int i = 0; i < table.length; i++)
+                keyed[i] = (((table[i] ^ target) << ID_BITS) | table[i]) ^ Long.MIN_VALUE;
+            Arrays.sort(keyed);
+
+            long[] closest = new long[Math.min(K, keyed.length)];
+            for(int i = 0; i < closest.length; i++)
+                closest[i] = keyed[i] & ((1L << ID_BITS) - 1);
+            return closest;
+        }
+
+        int NodeOf(long id)
+        {
+            return Arrays.binarySearch(ids, id);
+        }
+
+        final long[] ids;
+        final long[][] tables;
+    }
+
+    private static class SimulatedLookup
+    {
+        SimulatedLookup(Network network, int source, long target)
+        {
+            this.m_network = network;
+            this.m_source = source;
+            this.m_target = target;
+            this.m_shortlist = new TreeSet<>((a, b) -> Long.compare(a ^ target, b ^ target));
+            this.m_hop = new HashMap<>();
+            this.m_responded = new HashSet<>();
+        }
+
+        void Run()
+        {
+            for(long peer : m_network.ClosePeers(m_source, m_target))
+                Offer(peer, 1);
+
+            while(true)
+            {
+                List<Long> to_query = new ArrayList<>(ALPHA);
+                int in_window = 0;
+
+                for(long peer : m_shortlist)
+                {
+                    if(in_window++ == K)
+                        break;
+                    if(!m_responded.contains(peer) && to_query.size() < ALPHA)
+                        to_query.add(peer);
+                }
+
+                if(to_query.isEmpty())
+                    break;
+
+                for(long peer : to_query)
+                {
+                    int hop = m_hop.get(peer);
+
+                    m_responded.add(peer);
+                    queried++;
+                    hops = Math.max(hops, hop);
+
+                    for(long entry : m_network.ClosePeers(m_network.NodeOf(peer), m_target))
+                        Offer(entry, hop + 1);
+                }
+            }
+
+            int in_window = 0;
+            for(long peer : m_shortlist)
+            {
+                if(in_window++ == K)
+                    break;
+                found |= (peer == m_target);
+            }
+        }
+
+        private void Offer(long peer, int hop)
+        {
+            if(peer == m_network.ids[m_source] || m_hop.containsKey(peer))
+                return;
+
+            m_hop.put(peer, hop);
+            m_shortlist.add(peer);
+        }
+
+        int hops;
+        int queried;
+        boolean found;
+
+        private final Network m_network;
+        private final int m_source;
+        private final long m_target;
+        private final TreeSet<Long> m_shortlist;
+        private final HashMap<Long, Integer> m_hop;
+        private final HashSet<Long> m_responded;
+    }
+
+    private static final int ID_BITS = 32;
+    private static final int K = 20;
+    private static final int ALPHA = 3;
+    private static final int LOOKUPS = 2_000;
+}
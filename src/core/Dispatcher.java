@@ -0,0 +1,151 @@
+package core;
+
+import core.peer.Frame;
+import core.peer.Opcode;
+import core.peer.Peer;
+import core.peer.RingBuffer;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Routes decoded frames to their handler through an array indexed by opcode. A fixed set of
+ * workers takes frames straight off the peer's receive pipeline and runs the handler inline.
+ * Each opcode has its own concurrency limit so a burst of one message type cannot take over
+ * every worker; frames over the limit are dropped.
+ */
+public class Dispatcher
+{
+    public Dispatcher(int workers)
+    {
+        this.m_handlers = new RPC[Opcode.COUNT];
+        this.m_limits = new Semaphore[Opcode.COUNT];
+        this.m_dispatched = new AtomicLongArray(Opcode.COUNT);
+        this.m_dropped = new AtomicLongArray(Opcode.COUNT);
+        this.m_workers = new Thread[workers];
+        this.m_active = new AtomicInteger(0);
+    }
+
+    public void Register(byte opcode, RPC handler, int max_concurrent)
+    {
+        assert max_concurrent > 0;
+
+        this.m_handlers[opcode] = handler;
+        this.m_limits[opcode] = new Semaphore(max_concurrent);
+    }
+
+    // Called for frames whose opcode has no registered handler.
+    public void RegisterUnknown(RPC handler)
+    {
+        this.m_unknown = handler;
+    }
+
+    public void Start(RingBuffer pipeline)
+    {
+        this.m_pipeline = pipeline;
+
+        for(int i = 0; i < m_workers.length; i++)
+        {
+            m_workers[i] = new Thread(this::Consume, "dispatcher-" + i);
+            m_workers[i].setDaemon(true);
+            m_workers[i].start();
+        }
+    }
+
+    public void Dispatch(Peer.RoutingTableEntry peer_info, Frame frame)
+    {
+        int opcode = frame.opcode;
+
+        if(opcode < 0 || opcode >= m_handlers.length || m_handlers[opcode] == null)
+        {
+            if(m_unknown != null)
+                Run(m_unknown, peer_info, frame);
+            return;
+        }
+
+        Semaphore limit = m_limits[opcode];
+
+        if(!limit.tryAcquire())
+        {
+            m_dropped.incrementAndGet(opcode);
+            return;
+        }
+
+        try
+        {
+            m_dispatched.incrementAndGet(opcode);
+            Run(m_handlers[opcode], peer_info, frame);
+        }
+        finally
+        {
+            limit.release();
+        }
+    }
+
+    public void PrintStats()
+    {
+        System.out.println("Dispatcher\n----------------");
+        System.out.format("%-25s [%d]\n", "Workers:", m_workers.length);
+        System.out.format("%-25s [%d]\n", "Active:", m_active.get());
+
+        for(int i = 0; i < Opcode.COUNT; i++)
+        {
+            if(m_handlers[i] != null)
+                System.out.format("%-25s [%d dispatched, %d dropped]\n", Opcode.Name(i) + ":", m_dispatched.get(i), m_dropped.get(i));
+        }
+        System.out.println("----------------");
+
+        if(m_pipeline != null)
+            m_pipeline.PrintStats();
+    }
+
+    public void Shutdown()
+    {
+        if(m_pipeline != null)
+            m_pipeline.Close();
+    }
+
+    private void Consume()
+    {
+        RingBuffer.Event event = new RingBuffer.Event();
+
+        try
+        {
+            while(m_pipeline.Take(event))
+            {
+                Dispatch(event.peer_info, event.frame);
+                event.frame.Release();
+                event.Clear();
+            }
+        }
+        catch (InterruptedException ignored) {}
+    }
+
+    private void Run(RPC handler, Peer.RoutingTableEntry peer_info, Frame frame)
+    {
+        m_active.incrementAndGet();
+        try
+        {
+            handler.Parse(peer_info, frame);
+        }
+        catch (Exception e)
+        {
+            System.out.println("Error: " + e + "\n\n"  + "Stacktrace: " + Arrays.toString(e.getStackTrace()));
+        }
+        finally
+        {
+            m_active.decrementAndGet();
+        }
+    }
+
+    private final RPC[] m_handlers;
+    private final Semaphore[] m_limits;
+    private final AtomicLongArray m_dispatched;
+    private final AtomicLongArray m_dropped;
+    private final Thread[] m_workers;
+    private final AtomicInteger m_active;
+    private RPC m_unknown;
+    private RingBuffer m_pipeline;
+}
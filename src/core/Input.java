@@ -1,14 +1,18 @@
 package core;
 
+import core.peer.NodeId;
+import core.peer.Peer;
+import core.peer.Quorum;
 import core.peer.Runner;
 
 import java.io.*;
-import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class Input
 {
@@ -41,12 +45,13 @@ public class Input
         this.m_commands = new HashMap<>();
         m_commands.put("/help",          new CommandEntry(this::Help,          "Display the necessary information to control the program",             0, "/help"));
         m_commands.put("/exit",          new CommandEntry(this::Exit,          "Close the peer and exit the program",                                  0, "/exit"));
-        m_commands.put("/print",         new CommandEntry(this::Print,         "Will invoke the print function",                                       1, "/print [rt/dt/info/idx/data]"));
+        m_commands.put("/print",         new CommandEntry(this::Print,         "Will invoke the print function",                                       1, "/print [rt/dt/info/idx/stats/data]"));
         m_commands.put("/connect",       new CommandEntry(this::Connect,       "Will connect to bootstrapped node if specified, otherwise broadcast.", 0, "/connect opt:[ [ip] [port] ]"));
         m_commands.put("/clear",         new CommandEntry(this::Clear,         "Will reset the data table within the peer",                            0, "/clear"));
         m_commands.put("/store",         new CommandEntry(this::Store,         "Store a key/value pair in the distributed system",                     2, "/store [key] [value]"));
-        m_commands.put("/get",           new CommandEntry(this::Get,           "Get the value of the respective key in the distributed system",        1, "/get [key]"));
-        m_commands.put("/init",          new CommandEntry(this::Init,          "Initialise the peer, creating its socket and thread for joining.",     0, "/init [opt:nickname] [opt:port]"));
+        m_commands.put("/get",           new CommandEntry(this::Get,           "Get the value of the respective key in the distributed system",        1, "/get [key] [opt:r]"));
+        m_commands.put("/quorum",        new CommandEntry(this::SetQuorum,     "Show or set the replicas per key and how many reads/writes wait for.", 0, "/quorum opt:[ [n] [r] [w] ]"));
+        m_commands.put("/init",          new CommandEntry(this::Init,          "Initialise the peer, creating its socket and thread for joining.",     0, "/init [opt:nickname] [opt:port] [opt:nio]"));
         m_commands.put("/robot",         new CommandEntry(this::Robot,         "Automated robot option to generate example data in the network.",      1, "/robot [size]"));
         m_commands.put("/togglelink",    new CommandEntry(this::ToggleLink,    "Toggle the connection of the peer to the network.",                    0, "/togglelink"));
         m_commands.put("/getkeys",       new CommandEntry(this::GetKeys,       "Return all known data keys within the network.",                       0, "/getkeys"));
@@ -130,7 +135,7 @@ public class Input
     private void Connect(String[] tokens) throws IOException, NoSuchAlgorithmException, InterruptedException
     {
         if(m_kademlia.GetPeer() == null)
-            m_kademlia.InitPeer(RandomLetters(10), 0);
+            m_kademlia.InitPeer(RandomLetters(10), 0, false);
 
         if(tokens.length == 2)
         {
@@ -140,7 +145,7 @@ public class Input
 
     private void Clear(String[] tokens)
     {
-        m_kademlia.GetPeer().m_data_table = new TreeMap<>();
+        m_kademlia.GetPeer().m_data_table.Clear();
         m_kademlia.GetPeer().m_data_keys = new HashMap<>();
     }
 
@@ -163,10 +168,15 @@ public class Input
                 case "info":
                     this.m_kademlia.PrintInfo();
                     break;
+                case "stats":
+                    this.m_kademlia.GetDispatcher().PrintStats();
+                    this.m_kademlia.GetPeer().PrintStats();
+                    break;
                 default:
-                    BigInteger key_hash = Lib.SHA1(option, BigInteger.valueOf(1).shiftLeft(m_kademlia.GetPeer().m_m_bits));
-                    if(m_kademlia.GetPeer().m_data_table.containsKey(key_hash))
-                        System.out.println("Data" + " " + "(" + option + ")" + ":" + " " + new String((byte[])m_kademlia.GetPeer().m_data_table.get(key_hash).value));
+                    NodeId key_hash = NodeId.Hash(option, m_kademlia.GetPeer().m_m_bits);
+                    Peer.DataItem data_item = m_kademlia.GetPeer().m_data_table.Get(key_hash);
+                    if(data_item != null)
+                        PrintValue(option, data_item);
                     else System.out.println("~ Option not valid");
                     break;
             }
@@ -179,10 +189,42 @@ public class Input
         {
             String key = tokens[0];
             String value = String.join(" ", Arrays.copyOfRange(tokens, 1, tokens.length));
-            this.m_kademlia.StoreData(key, value.getBytes(), false);
+            AwaitStore(key, this.m_kademlia.StoreData(key, value.getBytes(), false));
         } else System.out.println("~ Please use the /init command to initialise the peer before accessing data in the network");
     }
 
+    private void AwaitStore(String key, CompletableFuture<Integer> stored)
+    {
+        try
+        {
+            stored.join();
+        }
+        catch (CompletionException e)
+        {
+            System.out.println("~ " + e.getCause().getMessage());
+        }
+    }
+
+    private void SetQuorum(String[] tokens)
+    {
+        if(m_kademlia.GetPeer() == null)
+        {
+            System.out.println("~ Please use the /init command to initialise the peer before accessing data in the network");
+            return;
+        }
+
+        try
+        {
+            if(tokens.length >= 3)
+                m_kademlia.GetPeer().SetQuorum(new Quorum(Integer.parseInt(tokens[0]), Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2])));
+            System.out.println("~ Quorum " + m_kademlia.GetPeer().m_quorum);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println("~ " + e.getMessage());
+        }
+    }
+
     private void StoreWeather(String[] tokens) throws NoSuchAlgorithmException, InterruptedException, IOException
     {
         if(m_kademlia.GetPeer() != null)
@@ -198,7 +240,7 @@ public class Input
 
             String result = new String(reader.readAllBytes());
 
-            this.m_kademlia.StoreData(city, result.getBytes(), false);
+            AwaitStore(city, this.m_kademlia.StoreData(city, result.getBytes(), false));
         } else System.out.println("~ Please use the /init command to initialise the peer before accessing data in the network");
     }
 
@@ -214,15 +256,7 @@ public class Input
                 return;
             }
 
-            if(Files.size(file) > m_kademlia.GetPeer().m_socket.MAX_RECEIVE_SIZE)
-            {
-                System.out.println("~ File at specified path is too large (limit (16KB))");
-                return;
-            }
-
-            byte[] file_bytes = Files.readAllBytes(file);
-
-            this.m_kademlia.StoreData(tokens[0], file_bytes, true);
+            AwaitStore(tokens[0], this.m_kademlia.StoreFile(tokens[0], file));
         } else System.out.println("~ Please use the /init command to initialise the peer before accessing data in the network");
     }
 
@@ -230,9 +264,11 @@ public class Input
     {
         if(m_kademlia.GetPeer() != null)
         {
-            BigInteger hash_key = Lib.SHA1(tokens[0], BigInteger.valueOf(1).shiftLeft(m_kademlia.GetPeer().m_m_bits));
+            NodeId hash_key = NodeId.Hash(tokens[0], m_kademlia.GetPeer().m_m_bits);
+
+            Peer.DataItem data_item = m_kademlia.GetPeer().m_data_table.Get(hash_key);
 
-            if(m_kademlia.GetPeer().m_data_table.containsKey(hash_key))
+            if(data_item != null)
             {
                 Path file = Paths.get(tokens[1]);
 
@@ -242,9 +278,16 @@ public class Input
                     return;
                 }
 
-                Files.createFile(file);
-                byte[] file_bytes = (byte[])m_kademlia.GetPeer().m_data_table.get(hash_key).value;
-                Files.write(file, file_bytes);
+                try
+                {
+                    var result = m_kademlia.GetPeer().ExportFile(data_item, file).join();
+                    System.out.format("~ Exported (%s), %d bytes in %d ms\n", tokens[0], Files.size(file), result.latency_ns / 1_000_000);
+                }
+                catch (CompletionException e)
+                {
+                    Files.deleteIfExists(file);
+                    System.out.println("~ " + e.getCause().getMessage());
+                }
 
             } else System.out.println("~ The data item" + " " + "(" + tokens[0] + ")" + " "  + "has not been found");
         } else System.out.println("~ Please use the /init command to initialise the peer before accessing data in the network");
@@ -262,10 +305,11 @@ public class Input
         } else System.out.println("~ Please use the /init command to initialise the peer before accessing data in the network");
     }
 
-    private void Init(String[] tokens) throws NoSuchAlgorithmException, IOException
+    private void Init(String[] tokens) throws NoSuchAlgorithmException, IOException, InterruptedException
     {
         String nickname = RandomLetters(10);
         int port = 0;
+        boolean nio = false;
 
         switch (tokens.length)
         {
@@ -273,13 +317,15 @@ public class Input
                 nickname = CheckValidNickname(tokens[0]);
                 break;
             case 2:
+            case 3:
                 nickname = CheckValidNickname(tokens[0]);
                 port = Integer.parseInt(tokens[1]);
+                nio = tokens.length == 3 && tokens[2].equals("nio");
                 break;
             default:
                 break;
         }
-        this.m_kademlia.InitPeer(nickname, port);
+        this.m_kademlia.InitPeer(nickname, port, nio);
     }
 
     private String CheckValidNickname(String nick_name)
@@ -295,11 +341,49 @@ public class Input
     {
         if(m_kademlia.GetPeer() != null)
         {
-            this.m_kademlia.GetPeer().GetDataItem(tokens[0]);
+            Peer.DataItem data_item;
+
+            try
+            {
+                Quorum quorum = m_kademlia.GetPeer().m_quorum;
+                data_item = this.m_kademlia.GetData(tokens[0], (tokens.length > 1) ? quorum.WithReads(Integer.parseInt(tokens[1])) : quorum).join();
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.out.println("~ " + e.getMessage());
+                return;
+            }
+            catch (CompletionException e)
+            {
+                System.out.println("~ " + e.getCause().getMessage());
+                return;
+            }
+
+            if(data_item == null)
+                System.out.println("~ Data item (" + tokens[0] + ")" + " " + "was not found in the network");
+            else if(!data_item.is_file)
+                PrintValue(tokens[0], data_item);
+            else System.out.println("~ Data item (" + tokens[0] + ")" + " " + "has been retrieved, use /export to save it");
         } else System.out.println("~ Please use the /init command to initialise the peer before accessing data in the network");
     }
 
 
+    private void PrintValue(String key, Peer.DataItem data_item) throws NoSuchAlgorithmException
+    {
+        try
+        {
+            byte[] value = m_kademlia.GetPeer().ReadValue(data_item).join();
+
+            if(value != null)
+                System.out.println("Data" + " " + "(" + key + ")" + ":" + " " + new String(value));
+            else System.out.println("~ Data item (" + key + ")" + " " + "is missing some of its chunks");
+        }
+        catch (CompletionException e)
+        {
+            System.out.println("~ " + e.getCause().getMessage());
+        }
+    }
+
     private void RemoveData(String[] tokens) throws NoSuchAlgorithmException
     {
         if(m_kademlia.GetPeer() != null)
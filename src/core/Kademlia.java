@@ -1,27 +1,39 @@
 package core;
 
+import core.peer.Frame;
+import core.peer.NodeId;
+import core.peer.Opcode;
 import core.peer.Peer;
+import core.peer.Quorum;
 import core.peer.Runner;
 
 import java.io.IOException;
-import java.math.BigInteger;
-import java.net.InetAddress;
+import java.nio.file.Path;
 import java.rmi.Remote;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
-public class Kademlia implements Remote, Runnable
+public class Kademlia implements Remote
 {
 
     public Kademlia()
     {
         this.m_peer = null;
-        this.m_state = 0;
     }
 
     public void ConnectToBootStrapped(String bootstrapped_ip, int bootstrapped_port) throws InterruptedException
     {
-        m_peer.JoinThroughPeer(bootstrapped_ip, bootstrapped_port);
+        try
+        {
+            m_peer.JoinThroughPeer(bootstrapped_ip, bootstrapped_port).get();
+        }
+        catch (ExecutionException e)
+        {
+            System.out.println("~ No response from (" + bootstrapped_ip + ":" + bootstrapped_port + ")");
+        }
     }
 
     public void ConnectThroughBroadcast() throws IOException, InterruptedException
@@ -31,27 +43,35 @@ public class Kademlia implements Remote, Runnable
 
     private void DefineCommands()
     {
-        this.m_commands = new HashMap<>();
-        this.m_commands.put("PING",                this.m_peer::Ping);
-        this.m_commands.put("PONG",                this.m_peer::Pong);
-        this.m_commands.put("CONNECT_REQUEST",     this.m_peer::ConnectRequest);
-        this.m_commands.put("CONNECT_RESPONSE",    this.m_peer::ConnectResponse);
-        this.m_commands.put("FIND_NODE_RESPONSE",  this.m_peer::FindNodeResponse);
-        this.m_commands.put("FIND_NODE_REQUEST",   this.m_peer::FindNodeRequest);
-        this.m_commands.put("FIND_NODE_RESPONSE",  this.m_peer::FindNodeResponse);
-        this.m_commands.put("FIND_VALUE_REQUEST",  this.m_peer::FindValueRequest);
-        this.m_commands.put("FIND_VALUE_RESPONSE", this.m_peer::FindValueResponse);
-        this.m_commands.put("FIND_KEYS_REQUEST",   this.m_peer::FindKeysRequest);
-        this.m_commands.put("FIND_KEYS_RESPONSE",  this.m_peer::FindKeysResponse);
-        this.m_commands.put("STORE",               this.m_peer::Store);
-        this.m_commands.put("EXIT",                this::Exit);
+        int workers = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        int shared = Math.max(1, workers / 2);
+
+        this.m_dispatcher = new Dispatcher(workers);
+        this.m_dispatcher.RegisterUnknown(this::HandleUnknown);
+        this.m_dispatcher.Register(Opcode.PING,                this.m_peer::Ping,              shared);
+        this.m_dispatcher.Register(Opcode.PONG,                this.m_peer::Pong,              shared);
+        this.m_dispatcher.Register(Opcode.CONNECT_REQUEST,     this.m_peer::ConnectRequest,    shared);
+        this.m_dispatcher.Register(Opcode.CONNECT_RESPONSE,    this.m_peer::ConnectResponse,   shared);
+        this.m_dispatcher.Register(Opcode.FIND_NODE_REQUEST,   this.m_peer::FindNodeRequest,   shared);
+        this.m_dispatcher.Register(Opcode.FIND_NODE_RESPONSE,  this.m_peer::FindNodeResponse,  shared);
+        this.m_dispatcher.Register(Opcode.FIND_VALUE_REQUEST,  this.m_peer::FindValueRequest,  shared);
+        this.m_dispatcher.Register(Opcode.FIND_VALUE_RESPONSE, this.m_peer::FindValueResponse, shared);
+        this.m_dispatcher.Register(Opcode.FIND_KEYS_REQUEST,   this.m_peer::FindKeysRequest,   shared);
+        this.m_dispatcher.Register(Opcode.FIND_KEYS_RESPONSE,  this.m_peer::FindKeysResponse,  shared);
+        this.m_dispatcher.Register(Opcode.STORE,               this.m_peer::Store,             shared);
+        this.m_dispatcher.Register(Opcode.STORE_ACK,           this.m_peer::StoreAck,          shared);
+        this.m_dispatcher.Register(Opcode.CHUNK_REQUEST,       this.m_peer::ChunkRequest,      shared);
+        this.m_dispatcher.Register(Opcode.CHUNK_RESPONSE,      this.m_peer::ChunkResponse,     shared);
+        this.m_dispatcher.Register(Opcode.SYNC_REQUEST,        this.m_peer::SyncRequest,       shared);
+        this.m_dispatcher.Register(Opcode.SYNC_RESPONSE,       this.m_peer::SyncResponse,      shared);
+        this.m_dispatcher.Register(Opcode.EXIT,                this::Exit,                     1);
     }
 
     public void PrintInfo()
     {
         System.out.println("Peer (" + m_peer.m_id + ")\n----------------");
         System.out.format("%-25s [%s]\n", "Peer Nickname:", m_peer.m_nickname);
-        System.out.format("%-25s [%d]\n", "Peer ID:", m_peer.m_id);
+        System.out.format("%-25s [%s]\n", "Peer ID:", m_peer.m_id);
         System.out.format("%-25s [%s]\n", "Socket IP Address:", m_peer.m_socket.m_ip_address);
         System.out.format("%-25s [%d]\n", "Socket Port:", m_peer.m_socket.m_port);
         System.out.format("%-25s [%s]\n", "Bootstrapped IP Address:", (m_peer.m_bootstrapped_ip == null) ? "" : m_peer.m_bootstrapped_ip);
@@ -59,85 +79,71 @@ public class Kademlia implements Remote, Runnable
         System.out.println("----------------");
     }
 
-    public void StoreData(String key, byte[] value, boolean is_file) throws NoSuchAlgorithmException, InterruptedException, IOException
+    // The future completes with the number of replicas holding the item once the quorum's W do.
+    public CompletableFuture<Integer> StoreData(String key, byte[] value, boolean is_file) throws IOException, NoSuchAlgorithmException, InterruptedException
     {
-        m_peer.AddDataItem(key, value, is_file);
+        return StoreData(key, value, is_file, m_peer.m_quorum);
     }
 
-    public void run()
+    public CompletableFuture<Integer> StoreData(String key, byte[] value, boolean is_file, Quorum quorum) throws IOException, NoSuchAlgorithmException, InterruptedException
     {
-        try
-        {
-            Lib.Pair<Peer.RoutingTableEntry, byte[]> current_input = null;
-            while (m_peer != null)
-            {
-                switch (this.m_state)
-                {
-                    case 0:
-                        current_input = m_peer.GetNextReceived();
-                        this.m_state = (current_input == null) ? 0 : 2;
-                        break;
-                    case 2:
-                        HandleCommand(current_input);
-                        this.m_state = 0; break;
-                }
-            }
-        }
-        catch (Exception e)
-        {
-            System.out.println("Error: " + e + "\n\n"  + "Stacktrace: " + Arrays.toString(e.getStackTrace()));
-        }
+        return m_peer.AddDataItem(key, value, is_file, quorum);
     }
 
-    private void HandleCommand(Lib.Pair<Peer.RoutingTableEntry, byte[]> request) throws IOException, InterruptedException, NoSuchAlgorithmException
+    public CompletableFuture<Integer> StoreFile(String key, Path file) throws IOException, NoSuchAlgorithmException, InterruptedException
     {
-        String[] tokens = new String(request.second).replace("\0", "").split(" ");
-        String command_str = tokens[0].split(":")[0];
+        return StoreFile(key, file, m_peer.m_quorum);
+    }
 
-        int port = request.first.port;
-        InetAddress ip_address = InetAddress.getByName(request.first.ip_address);
+    public CompletableFuture<Integer> StoreFile(String key, Path file, Quorum quorum) throws IOException, NoSuchAlgorithmException, InterruptedException
+    {
+        return m_peer.AddFile(key, file, quorum);
+    }
 
-        if(!this.m_commands.containsKey(command_str))
-        {
-            this.CloseRemotePeer(new Lib.Pair<>(ip_address.getHostAddress(), port));
-            this.m_peer.RemovePeerFromRoutingTable(Lib.SHA1(ip_address + ":" + port, BigInteger.valueOf(1).shiftLeft(m_peer.m_m_bits)));
-        }
-        else
-        {
-            var command = this.m_commands.get(command_str);
+    public CompletableFuture<Peer.DataItem> GetData(String key) throws NoSuchAlgorithmException
+    {
+        return GetData(key, m_peer.m_quorum);
+    }
 
-            new Thread(() -> {
-                try {
-                    command.Parse(request.first, request.second);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }).start();
-        }
+    public CompletableFuture<Peer.DataItem> GetData(String key, Quorum quorum) throws NoSuchAlgorithmException
+    {
+        return m_peer.FindDataItem(key, quorum);
+    }
 
-        this.m_state = 0;
+    private void HandleUnknown(Peer.RoutingTableEntry peer_info, Frame frame) throws InterruptedException
+    {
+        this.CloseRemotePeer(new Lib.Pair<>(peer_info.ip_address, peer_info.port));
+        this.m_peer.RemovePeerFromRoutingTable(new NodeId(frame.sender_id));
     }
 
     public void GetallDataKeys() throws InterruptedException
     {
-        m_peer.ContactAllBuckets();
+        m_peer.ContactAllBuckets().join();
 
-        for(var bucket : m_peer.m_routing_table.entrySet())
+        List<CompletableFuture<Frame>> responses = new ArrayList<>();
+
+        for(var bucket : m_peer.m_routing_table)
         {
-            var peer = bucket.getValue().firstEntry();
+            var peer = bucket.Newest();
 
             if(peer != null)
-                m_peer.Send(peer.getValue().ip_address, peer.getValue().port, (m_peer.FormatCommand("FIND_KEYS_REQUEST")).getBytes(), true);
+                responses.add(m_peer.SendAsync(peer, m_peer.FormatCommand(Opcode.FIND_KEYS_REQUEST)));
         }
+
+        Lib.AllOf(responses).join();
     }
 
-    public void ObtainMissing() throws InterruptedException, NoSuchAlgorithmException, IOException
+    public void ObtainMissing() throws InterruptedException, NoSuchAlgorithmException
     {
         for(var idx : m_peer.m_data_keys.entrySet())
         {
-            if(!m_peer.m_data_table.containsKey(idx.getKey()))
+            if(!m_peer.m_data_table.Contains(idx.getKey()))
             {
-                m_peer.GetDataItem(idx.getValue());
+                try
+                {
+                    m_peer.GetDataItem(idx.getValue());
+                }
+                catch (CompletionException ignored) {}
             }
         }
     }
@@ -149,16 +155,17 @@ public class Kademlia implements Remote, Runnable
         ((Runner) m_peer.m_heartbeat).ToggleLink();
     }
 
-    public void InitPeer(String nickname, int port) throws IOException, NoSuchAlgorithmException
+    public void InitPeer(String nickname, int port, boolean nio) throws IOException, NoSuchAlgorithmException, InterruptedException
     {
-        m_peer = new Peer(nickname, port);
-        m_peer.DefineSenderAndReceiver();
+        m_peer = new Peer(nickname, port, nio);
         DefineCommands();
-        new Thread(this).start();
+        m_dispatcher.Start(m_peer.GetPipeline());
+        m_peer.DefineSenderAndReceiver();
     }
 
-    private void Exit(Peer.RoutingTableEntry peer_info, byte[] message)
+    private void Exit(Peer.RoutingTableEntry peer_info, Frame frame)
     {
+        m_dispatcher.Shutdown();
         m_peer.Close();
         m_peer = null;
         System.out.println("\rWaiting on Runner Services to finish");
@@ -167,7 +174,7 @@ public class Kademlia implements Remote, Runnable
 
     private void CloseRemotePeer(Lib.Pair<String, Integer> peer) throws InterruptedException
     {
-        m_peer.Send(peer.first, peer.second, (m_peer.FormatCommand("EXIT")).getBytes(), false);
+        m_peer.Send(peer.first, peer.second, m_peer.FormatCommand(Opcode.EXIT), false);
     }
 
     public void Close()
@@ -180,7 +187,11 @@ public class Kademlia implements Remote, Runnable
         return m_peer;
     }
 
-    private int m_state;
+    public Dispatcher GetDispatcher()
+    {
+        return m_dispatcher;
+    }
+
     private Peer m_peer;
-    private HashMap<String, RPC> m_commands;
+    private Dispatcher m_dispatcher;
 }
@@ -1,9 +1,13 @@
 package core;
 
-import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Lib
 {
@@ -19,18 +23,83 @@ public class Lib
         public S second;
     }
 
-    public static BigInteger SHA1(String input, BigInteger mod) throws NoSuchAlgorithmException
+    // Lowest `bits` bits of the SHA-1 digest of the input, bits <= 64.
+    public static long SHA1(String input, int bits) throws NoSuchAlgorithmException
     {
         MessageDigest md = MessageDigest.getInstance("SHA-1");
         md.update(input.getBytes(StandardCharsets.UTF_8));
         byte[] digest = md.digest();
 
-        StringBuilder hexString = new StringBuilder();
+        long value = 0;
+        for (int i = digest.length - Long.BYTES; i < digest.length; i++) {
+            value = (value << 8) | (digest[i] & 0xFF);
+        }
+
+        return (bits >= Long.SIZE) ? value : value & ((1L << bits) - 1);
+    }
+
+    // Completes with the first k successful results in completion order, or exceptionally once
+    // too many have failed for k to be reached. The futures still running are then cancelled.
+    public static <T> CompletableFuture<List<T>> FirstK(List<CompletableFuture<T>> futures, int k)
+    {
+        CompletableFuture<List<T>> result = new CompletableFuture<>();
 
-        for (byte b : digest) {
-            hexString.append(String.format("%02x", b));
+        if(k <= 0)
+        {
+            result.complete(new ArrayList<>());
+            return result;
         }
 
-        return new BigInteger(hexString.toString(), 16).mod(mod);
+        if(futures.size() < k)
+        {
+            result.completeExceptionally(new NoSuchElementException("Only " + futures.size() + " of " + k + " requests were sent"));
+            return result;
+        }
+
+        List<T> values = new ArrayList<>(k);
+        AtomicInteger failed = new AtomicInteger(0);
+
+        for(var future : futures)
+        {
+            future.whenComplete((value, e) -> {
+                if(e == null)
+                {
+                    synchronized (values)
+                    {
+                        if(values.size() < k)
+                        {
+                            values.add(value);
+                            if(values.size() == k)
+                                result.complete(new ArrayList<>(values));
+                        }
+                    }
+                }
+                else if(failed.incrementAndGet() > futures.size() - k)
+                    result.completeExceptionally(e);
+            });
+        }
+
+        result.whenComplete((value, e) -> futures.forEach(future -> future.cancel(false)));
+        return result;
+    }
+
+    public static <T> CompletableFuture<T> AnyOf(List<CompletableFuture<T>> futures)
+    {
+        return FirstK(futures, 1).thenApply(values -> values.get(0));
+    }
+
+    // Completes once every future has settled, with the results of those that succeeded.
+    public static <T> CompletableFuture<List<T>> AllOf(List<CompletableFuture<T>> futures)
+    {
+        return CompletableFuture.allOf(futures.stream().map(future -> future.exceptionally(e -> null)).toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> {
+                    List<T> values = new ArrayList<>(futures.size());
+                    for(var future : futures)
+                    {
+                        if(!future.isCompletedExceptionally())
+                            values.add(future.join());
+                    }
+                    return values;
+                });
     }
 }
@@ -1,5 +1,6 @@
 package core;
 
+import core.peer.Frame;
 import core.peer.Peer;
 
 import java.io.IOException;
@@ -7,5 +8,5 @@ import java.security.NoSuchAlgorithmException;
 
 public interface RPC
 {
-    public void Parse(Peer.RoutingTableEntry peer_info, byte[] message) throws InterruptedException, IOException, ClassNotFoundException, NoSuchAlgorithmException;
+    public void Parse(Peer.RoutingTableEntry peer_info, Frame frame) throws InterruptedException, IOException, NoSuchAlgorithmException;
 }
@@ -0,0 +1,243 @@
+package core.peer;
+
+import core.Lib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Digest-based replication of stored items to the peers that should also hold them. The key
+ * space is cut into RANGES ranges by the top bits of the key, and the items of a range are
+ * summarised by the XOR of a hash of each key and version. Each round, a node sends a neighbour
+ * the digests of the ranges whose content for that neighbour changed since they were last found
+ * in sync. The neighbour answers with the keys and versions it holds in the ranges where its own
+ * digest differs, and only the items it lacks or holds an older version of are sent. Once in
+ * sync a range costs nothing until it changes again; every REVALIDATE_ROUNDS rounds all ranges
+ * are compared afresh, so a neighbour that lost its data is refilled.
+ *
+ * Two nodes compare only the items they are both replicas of, each by its own routing table, so
+ * both sides digest the same set and the ranges match whenever the items do. Items held by a node
+ * that is not one of their replicas reach the replicas through the write itself, hints and
+ * republishing instead.
+ *
+ * SYNC_REQUEST:  [count int] then [range int][digest long] per range
+ * SYNC_RESPONSE: [differing ranges mask int][count int] then [key long][version long] per item in them
+ */
+class AntiEntropy
+{
+    AntiEntropy(Peer peer)
+    {
+        this.m_peer = peer;
+        this.m_synced = new ConcurrentHashMap<>();
+        this.m_range_shift = Math.max(0, peer.m_m_bits - RANGE_BITS);
+        this.m_ranges_compared = new AtomicLong(0);
+        this.m_ranges_in_sync = new AtomicLong(0);
+        this.m_items_sent = new AtomicLong(0);
+    }
+
+    // Compares digests with every neighbour that is a fellow replica of some of our items.
+    void Round() throws InterruptedException
+    {
+        if(++m_rounds % REVALIDATE_ROUNDS == 0)
+            m_synced.clear();
+
+        Map<NodeId, Peer.RoutingTableEntry> peers = new HashMap<>();
+        Map<NodeId, List<Map.Entry<NodeId, Peer.DataItem>>> replicas = new HashMap<>();
+
+        for(var data : m_peer.m_data_table.Snapshot().entrySet())
+        {
+            if(data.getValue().IsCached() || !m_peer.IsResponsibleFor(data.getKey()))
+                continue;
+
+            for(var peer : m_peer.ReplicasOf(data.getKey()))
+            {
+                peers.putIfAbsent(peer.id, peer);
+                replicas.computeIfAbsent(peer.id, k -> new ArrayList<>()).add(data);
+            }
+        }
+
+        for(var replica : replicas.entrySet())
+            Compare(peers.get(replica.getKey()), replica.getValue());
+    }
+
+    // Keys and versions of our items in each range whose digest differs from the one given. Only
+    // the items shared with the requester are digested, the same set it digested for us; any
+    // other item would make its range differ every time.
+    ByteBuffer Answer(NodeId requester, ByteBuffer request)
+    {
+        int count = request.getInt();
+        long[] digests = new long[RANGES];
+        List<Map.Entry<NodeId, Peer.DataItem>> shared = new ArrayList<>();
+        List<Map.Entry<NodeId, Peer.DataItem>> items = new ArrayList<>();
+
+        for(var data : m_peer.m_data_table.Snapshot().entrySet())
+        {
+            if(Shares(data.getKey(), data.getValue(), requester))
+            {
+                digests[Range(data.getKey())] ^= Digest(data.getKey(), data.getValue());
+                shared.add(data);
+            }
+        }
+
+        int differs = 0;
+        for(int i = 0; i < count; i++)
+        {
+            int range = request.getInt();
+            long digest = request.getLong();
+
+            if(range >= 0 && range < RANGES && digests[range] != digest)
+                differs |= 1 << range;
+        }
+
+        for(var data : shared)
+        {
+            if((differs & (1 << Range(data.getKey()))) != 0)
+                items.add(data);
+        }
+
+        ByteBuffer response = ByteBuffer.allocate(2 * Integer.BYTES + items.size() * 2 * Long.BYTES);
+        response.putInt(differs).putInt(items.size());
+
+        for(var data : items)
+            response.putLong(data.getKey().Value()).putLong(data.getValue().version);
+        return response.flip();
+    }
+
+    void PrintStats()
+    {
+        System.out.println("Anti-Entropy\n----------------");
+        System.out.format("%-25s [%d]\n", "Rounds:", m_rounds);
+        System.out.format("%-25s [%d]\n", "Ranges Compared:", m_ranges_compared.get());
+        System.out.format("%-25s [%d]\n", "Ranges In Sync:", m_ranges_in_sync.get());
+        System.out.format("%-25s [%d]\n", "Items Sent:", m_items_sent.get());
+        System.out.println("----------------");
+    }
+
+    private void Compare(Peer.RoutingTableEntry peer, List<Map.Entry<NodeId, Peer.DataItem>> items) throws InterruptedException
+    {
+        long[] digests = new long[RANGES];
+        boolean[] present = new boolean[RANGES];
+
+        for(var data : items)
+        {
+            int range = Range(data.getKey());
+            digests[range] ^= Digest(data.getKey(), data.getValue());
+            present[range] = true;
+        }
+
+        long[] synced = m_synced.get(peer.id);
+        List<Integer> changed = new ArrayList<>();
+
+        for(int i = 0; i < RANGES; i++)
+        {
+            if(present[i] && (synced == null || synced[i] != digests[i]))
+                changed.add(i);
+        }
+
+        if(changed.isEmpty())
+            return;
+
+        m_ranges_compared.addAndGet(changed.size());
+        m_peer.SendSyncRequest(peer, changed, digests).thenAccept(frame -> Reconcile(peer, items, changed, digests, frame));
+    }
+
+    // Sends the items in the differing ranges the neighbour lacks or holds an older version of. A
+    // range is only recorded as in sync once every item sent for it is acknowledged, so a lost
+    // store is retried the next round.
+    private void Reconcile(Peer.RoutingTableEntry peer, List<Map.Entry<NodeId, Peer.DataItem>> items, List<Integer> changed, long[] digests, Frame frame)
+    {
+        try
+        {
+            int differs = frame.payload.getInt();
+            int count = frame.payload.getInt();
+            HashMap<NodeId, Long> held = new HashMap<>(count * 2);
+            HashMap<Integer, List<CompletableFuture<Frame>>> acks = new HashMap<>();
+
+            for(int i = 0; i < count; i++)
+                held.put(new NodeId(frame.payload.getLong()), frame.payload.getLong());
+
+            for(var data : items)
+            {
+                int range = Range(data.getKey());
+                Long held_version = held.get(data.getKey());
+
+                if((differs & (1 << range)) != 0 && (held_version == null || held_version < data.getValue().version))
+                {
+                    acks.computeIfAbsent(range, k -> new ArrayList<>()).add(m_peer.SendStore(peer, data.getValue()));
+                    m_items_sent.incrementAndGet();
+                }
+            }
+
+            for(int range : changed)
+            {
+                List<CompletableFuture<Frame>> sent = acks.get(range);
+
+                if(sent == null)
+                {
+                    if((differs & (1 << range)) == 0)
+                        m_ranges_in_sync.incrementAndGet();
+                    MarkSynced(peer, range, digests[range]);
+                }
+                else Lib.AllOf(sent).thenAccept(acked ->
+                {
+                    if(acked.size() == sent.size())
+                        MarkSynced(peer, range, digests[range]);
+                });
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (RuntimeException ignored) {}
+    }
+
+    private boolean Shares(NodeId key, Peer.DataItem item, NodeId peer)
+    {
+        if(item.IsCached() || !m_peer.IsResponsibleFor(key))
+            return false;
+
+        for(var replica : m_peer.ReplicasOf(key))
+        {
+            if(replica.id.equals(peer))
+                return true;
+        }
+        return false;
+    }
+
+    private void MarkSynced(Peer.RoutingTableEntry peer, int range, long digest)
+    {
+        m_synced.computeIfAbsent(peer.id, k -> new long[RANGES])[range] = digest;
+    }
+
+    private int Range(NodeId key)
+    {
+        return (int) (key.Value() >>> m_range_shift) & (RANGES - 1);
+    }
+
+    private static long Digest(NodeId key, Peer.DataItem item)
+    {
+        long h = (key.Value() * 0x9E3779B97F4A7C15L) ^ item.version ^ ((long) item.ValueLength() << 32);
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    private final Peer m_peer;
+    private final ConcurrentHashMap<NodeId, long[]> m_synced;
+    private final int m_range_shift;
+    private final AtomicLong m_ranges_compared;
+    private final AtomicLong m_ranges_in_sync;
+    private final AtomicLong m_items_sent;
+    private long m_rounds;
+
+    private static final int RANGE_BITS = 4;
+    private static final int RANGES = 1 << RANGE_BITS;
+    private static final int REVALIDATE_ROUNDS = 30;
+}
@@ -0,0 +1,52 @@
+package core.peer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Fixed size receive buffers which are handed back once every frame sliced from them has been
+ * handled. At most `capacity` buffers are retained; when the pool is empty a heap buffer is
+ * allocated instead and dropped on release, so a backlog never grows the direct memory held.
+ */
+public class BufferPool
+{
+    public BufferPool(int buffer_size, int capacity, boolean direct)
+    {
+        this.m_buffer_size = buffer_size;
+        this.m_capacity = capacity;
+        this.m_direct = direct;
+        this.m_free = new ArrayBlockingQueue<>(capacity);
+        this.m_allocated = new AtomicInteger(0);
+    }
+
+    public ByteBuffer Acquire()
+    {
+        ByteBuffer buffer = m_free.poll();
+
+        if(buffer != null)
+            return buffer;
+
+        if(m_allocated.getAndIncrement() < m_capacity)
+        {
+            return m_direct ? ByteBuffer.allocateDirect(m_buffer_size) : ByteBuffer.allocate(m_buffer_size);
+        }
+        m_allocated.decrementAndGet();
+        return ByteBuffer.allocate(m_buffer_size);
+    }
+
+    public void Release(ByteBuffer buffer)
+    {
+        if(buffer.isDirect() == m_direct)
+        {
+            buffer.clear();
+            m_free.offer(buffer);
+        }
+    }
+
+    private final int m_buffer_size;
+    private final int m_capacity;
+    private final boolean m_direct;
+    private final ArrayBlockingQueue<ByteBuffer> m_free;
+    private final AtomicInteger m_allocated;
+}
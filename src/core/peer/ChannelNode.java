@@ -0,0 +1,108 @@
+package core.peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/*
+ * Non-blocking DatagramChannel transport. Datagrams are received straight into pooled direct
+ * buffers, which the frames decoded from them slice without copying.
+ */
+class ChannelNode extends Node
+{
+    ChannelNode()
+    {
+        this.m_pool = new BufferPool(MAX_RECEIVE_SIZE, POOLED_BUFFERS, true);
+    }
+
+    @Override
+    public Datagram ReceivePacket() throws IOException
+    {
+        if(m_selector.select(RECEIVE_TIMEOUT) == 0)
+            return null;
+
+        m_selector.selectedKeys().clear();
+
+        ByteBuffer buffer = m_pool.Acquire();
+        SocketAddress source = m_channel.receive(buffer);
+
+        if(source == null)
+        {
+            m_pool.Release(buffer);
+            return null;
+        }
+
+        buffer.flip();
+        return new Datagram(m_pool, buffer, (InetSocketAddress) source);
+    }
+
+    @Override
+    public void SendPacket(ByteBuffer input, InetSocketAddress address) throws IOException
+    {
+        assert input.hasRemaining();
+
+        // A non-blocking send returns 0 while the socket's send buffer is full.
+        for(int tries = 0; m_channel.send(input, address) == 0 && tries < SEND_RETRIES; tries++)
+            Thread.onSpinWait();
+    }
+
+    @Override
+    public ByteBuffer AllocateBuffer(int size)
+    {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public void SetBroadcast(boolean state) throws IOException
+    {
+        m_channel.setOption(StandardSocketOptions.SO_BROADCAST, state);
+    }
+
+    @Override
+    public void Close()
+    {
+        try
+        {
+            m_selector.close();
+            m_channel.close();
+        }
+        catch (IOException ignored) {}
+    }
+
+    @Override
+    protected void Open(int port) throws IOException
+    {
+        DatagramChannel channel = DatagramChannel.open();
+
+        try
+        {
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+
+        this.m_channel = channel;
+        this.m_selector = Selector.open();
+        this.m_channel.register(m_selector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    protected int LocalPort()
+    {
+        return m_channel.socket().getLocalPort();
+    }
+
+    private DatagramChannel m_channel;
+    private Selector m_selector;
+    private final BufferPool m_pool;
+    private final int SEND_RETRIES = 1000;
+}
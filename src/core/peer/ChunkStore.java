@@ -0,0 +1,364 @@
+package core.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Content-addressed chunks of large files, one file per chunk named by the SHA-256 of its bytes.
+ * Chunks are only written once their hash has been checked, so anything read back is intact.
+ * Serving a transfer reads the same chunk piece by piece, so the most recently used chunk files
+ * are kept open.
+ *
+ * Chunks are reference counted by the manifests held in the DataStore: retaining a manifest
+ * counts its index chunks and every data chunk they list, and a chunk is deleted once the last
+ * manifest naming it is released. An index chunk that has not arrived yet when its manifest is
+ * retained has its data chunks counted when it is written. Chunks fetched only to read or export
+ * a value are collected afterwards, and Sweep deletes whatever no held manifest names, such as
+ * the leftovers of an interrupted run.
+ */
+public class ChunkStore
+{
+    public ChunkStore(Path directory) throws IOException
+    {
+        Files.createDirectories(directory);
+
+        this.m_directory = directory;
+        this.m_references = new HashMap<>();
+        this.m_unexpanded = new HashMap<>();
+        this.m_open = new LinkedHashMap<>(OPEN_CHANNELS, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileChannel> eldest)
+            {
+                if(size() <= OPEN_CHANNELS)
+                    return false;
+
+                Close(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public static byte[] Hash(ByteBuffer data)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data.duplicate());
+            return digest.digest();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean Has(byte[] hash)
+    {
+        return Files.exists(PathOf(hash));
+    }
+
+    // Up to length bytes of the chunk from offset, or null if the chunk is not held here.
+    public synchronized ByteBuffer Read(byte[] hash, int offset, int length)
+    {
+        try
+        {
+            FileChannel channel = Open(hash);
+            if(channel == null)
+                return null;
+
+            ByteBuffer piece = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - offset)));
+            while(piece.hasRemaining() && channel.read(piece, offset + piece.position()) > 0);
+            return piece.flip();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    // Stores the chunk if its bytes match the hash. Returns false when they do not.
+    public boolean Write(byte[] hash, ByteBuffer data) throws IOException
+    {
+        if(!MessageDigest.isEqual(hash, Hash(data)))
+            return false;
+
+        WriteVerified(hash, data);
+        return true;
+    }
+
+    // Stores a chunk whose bytes the caller has already hashed to hash.
+    void WriteVerified(byte[] hash, ByteBuffer data) throws IOException
+    {
+        Path path = PathOf(hash);
+        if(Files.exists(path))
+        {
+            synchronized (this)
+            {
+                m_bytes_deduplicated += data.remaining();
+            }
+            return;
+        }
+
+        Path temporary = Files.createTempFile(m_directory, "chunk", ".tmp");
+        try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE))
+        {
+            ByteBuffer source = data.duplicate();
+            while(source.hasRemaining())
+                channel.write(source);
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this)
+        {
+            m_chunks_written++;
+            m_bytes_written += data.remaining();
+
+            Integer unexpanded = m_unexpanded.remove(HexFormat.of().formatHex(hash));
+            if(unexpanded != null)
+                Count(Manifest.ReadHashes(data.duplicate()), unexpanded);
+        }
+    }
+
+    // Counts the chunks of a manifest now held under a key.
+    public synchronized void Retain(Manifest manifest)
+    {
+        for(var index : manifest.index)
+        {
+            String name = HexFormat.of().formatHex(index);
+            m_references.merge(name, 1, Integer::sum);
+
+            ByteBuffer hashes = Read(index, 0, Integer.MAX_VALUE);
+            if(hashes != null)
+                Count(Manifest.ReadHashes(hashes), 1);
+            else m_unexpanded.merge(name, 1, Integer::sum);
+        }
+    }
+
+    // Drops the references taken by Retain, deleting the chunks no other manifest names.
+    public synchronized void Release(Manifest manifest)
+    {
+        for(var index : manifest.index)
+        {
+            String name = HexFormat.of().formatHex(index);
+
+            if(m_unexpanded.computeIfPresent(name, (k, count) -> (count > 1) ? count - 1 : null) == null)
+            {
+                ByteBuffer hashes = Read(index, 0, Integer.MAX_VALUE);
+                if(hashes != null)
+                    Count(Manifest.ReadHashes(hashes), -1);
+            }
+            Count(new byte[][] { index }, -1);
+        }
+    }
+
+    // Deletes the chunks of a manifest that no held manifest names, after a read or export
+    // fetched them only for the moment.
+    public synchronized void Collect(Manifest manifest)
+    {
+        for(var index : manifest.index)
+        {
+            ByteBuffer hashes = Read(index, 0, Integer.MAX_VALUE);
+
+            if(hashes != null)
+            {
+                for(var hash : Manifest.ReadHashes(hashes))
+                    DeleteUnreferenced(HexFormat.of().formatHex(hash));
+            }
+            DeleteUnreferenced(HexFormat.of().formatHex(index));
+        }
+    }
+
+    // Deletes every chunk file that no held manifest names, and temporary files left behind.
+    public synchronized void Sweep() throws IOException
+    {
+        try(var files = Files.list(m_directory))
+        {
+            for(var path : (Iterable<Path>) files::iterator)
+            {
+                String name = path.getFileName().toString();
+
+                if(name.endsWith(".tmp"))
+                    Files.deleteIfExists(path);
+                else DeleteUnreferenced(name);
+            }
+        }
+    }
+
+    public Manifest Import(Path file, int chunk_size) throws IOException
+    {
+        try(FileChannel input = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            return Import(input, chunk_size);
+        }
+    }
+
+    // Cuts the input into chunks, streaming it through one chunk-sized buffer, and returns the
+    // manifest naming them. Chunks already held are not written again.
+    public Manifest Import(ReadableByteChannel input, int chunk_size) throws IOException
+    {
+        List<byte[]> index = new ArrayList<>();
+        ByteBuffer hashes = ByteBuffer.allocate(chunk_size - chunk_size % HASH_SIZE);
+        ByteBuffer chunk = ByteBuffer.allocate(chunk_size);
+        long length = 0;
+
+        while(true)
+        {
+            chunk.clear();
+            while(chunk.hasRemaining() && input.read(chunk) > 0);
+            chunk.flip();
+
+            if(!chunk.hasRemaining())
+                break;
+
+            byte[] hash = Hash(chunk);
+            WriteVerified(hash, chunk);
+            length += chunk.remaining();
+            hashes.put(hash);
+
+            if(!hashes.hasRemaining())
+                index.add(WriteIndex(hashes));
+        }
+
+        if(hashes.position() > 0)
+            index.add(WriteIndex(hashes));
+        return new Manifest(length, chunk_size, index.toArray(new byte[0][]));
+    }
+
+    // The whole value named by the manifest, or null if any of its chunks is not held here.
+    public byte[] Assemble(Manifest manifest)
+    {
+        byte[] value = new byte[(int) manifest.length];
+        int per_index = manifest.HashesPerIndex();
+
+        for(int i = 0; i < manifest.index.length; i++)
+        {
+            ByteBuffer index = Read(manifest.index[i], 0, per_index * HASH_SIZE);
+            if(index == null)
+                return null;
+
+            byte[][] hashes = Manifest.ReadHashes(index);
+            for(int j = 0; j < hashes.length; j++)
+            {
+                int chunk = i * per_index + j;
+                ByteBuffer data = Read(hashes[j], 0, manifest.ChunkLength(chunk));
+
+                if(data == null || data.remaining() != manifest.ChunkLength(chunk))
+                    return null;
+                data.get(value, chunk * manifest.chunk_size, data.remaining());
+            }
+        }
+        return value;
+    }
+
+    public synchronized void PrintStats()
+    {
+        System.out.println("Chunk Store\n----------------");
+        System.out.format("%-25s [%s]\n", "Path:", m_directory);
+        System.out.format("%-25s [%d]\n", "Chunks Written:", m_chunks_written);
+        System.out.format("%-25s [%d]\n", "Bytes Written:", m_bytes_written);
+        System.out.format("%-25s [%d]\n", "Deduplicated Bytes:", m_bytes_deduplicated);
+        System.out.format("%-25s [%d]\n", "Referenced Chunks:", m_references.size());
+        System.out.format("%-25s [%d]\n", "Chunks Deleted:", m_chunks_deleted);
+        System.out.format("%-25s [%d]\n", "Open Chunks:", m_open.size());
+        System.out.println("----------------");
+    }
+
+    private byte[] WriteIndex(ByteBuffer hashes) throws IOException
+    {
+        hashes.flip();
+        byte[] hash = Hash(hashes);
+        WriteVerified(hash, hashes);
+        hashes.clear();
+        return hash;
+    }
+
+    private void Count(byte[][] hashes, int delta)
+    {
+        for(var hash : hashes)
+        {
+            String name = HexFormat.of().formatHex(hash);
+
+            if(m_references.merge(name, delta, Integer::sum) <= 0)
+            {
+                m_references.remove(name);
+                DeleteUnreferenced(name);
+            }
+        }
+    }
+
+    private void DeleteUnreferenced(String name)
+    {
+        if(m_references.containsKey(name) || m_unexpanded.containsKey(name))
+            return;
+
+        FileChannel channel = m_open.remove(name);
+        if(channel != null)
+            Close(channel);
+
+        try
+        {
+            if(Files.deleteIfExists(m_directory.resolve(name)))
+                m_chunks_deleted++;
+        }
+        catch (IOException ignored) {}
+    }
+
+    private FileChannel Open(byte[] hash) throws IOException
+    {
+        String name = HexFormat.of().formatHex(hash);
+        FileChannel channel = m_open.get(name);
+
+        if(channel == null)
+        {
+            Path path = m_directory.resolve(name);
+            if(!Files.exists(path))
+                return null;
+
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            m_open.put(name, channel);
+        }
+        return channel;
+    }
+
+    private Path PathOf(byte[] hash)
+    {
+        return m_directory.resolve(HexFormat.of().formatHex(hash));
+    }
+
+    private static void Close(FileChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ignored) {}
+    }
+
+    private final Path m_directory;
+    private final LinkedHashMap<String, FileChannel> m_open;
+    private final HashMap<String, Integer> m_references;
+    private final HashMap<String, Integer> m_unexpanded;
+    private long m_chunks_written;
+    private long m_bytes_written;
+    private long m_bytes_deduplicated;
+    private long m_chunks_deleted;
+
+    public static final int HASH_SIZE = 32;
+    private static final int OPEN_CHANNELS = 16;
+}
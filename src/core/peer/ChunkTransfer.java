@@ -0,0 +1,458 @@
+package core.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * Fetches the chunks of a manifest from the nodes holding its key. Chunks are requested in
+ * datagram-sized pieces across up to CHUNKS_IN_FLIGHT chunks being assembled at once. The number
+ * of pieces in flight follows a congestion window: it grows by one per answered piece until the
+ * first loss, by one per window's worth after, and halves at most once a second when pieces are
+ * lost, since holders shed requests they cannot keep up with. Lost pieces are detected by a
+ * timeout adapted to the measured round trip time. Successive chunks start on successive
+ * holders, so a transfer pulls from all of them in parallel; a piece that times out or is
+ * missing is asked for again from the next holder. A completed chunk is checked against its hash
+ * and either written to its offset in the output file or, without one, kept in the local
+ * ChunkStore. Chunks already held locally are never fetched. Pieces are taken on the thread that
+ * receives them, but hashing and writing a completed chunk runs on the given executor, so the
+ * receive loop is never held up by it.
+ */
+public class ChunkTransfer
+{
+    public static class Result
+    {
+        Result(long bytes, int chunks, long retransmits, long latency_ns)
+        {
+            this.bytes = bytes;
+            this.chunks = chunks;
+            this.retransmits = retransmits;
+            this.latency_ns = latency_ns;
+        }
+
+        public final long bytes;
+        public final int chunks;
+        public final long retransmits;
+        public final long latency_ns;
+    }
+
+    private static class Job
+    {
+        Job(int chunk, byte[] hash, int length, boolean is_index)
+        {
+            this.chunk = chunk;
+            this.hash = hash;
+            this.length = length;
+            this.is_index = is_index;
+            this.pieces = (length + PIECE_SIZE - 1) / PIECE_SIZE;
+        }
+
+        void Reset()
+        {
+            this.received = new boolean[pieces];
+            this.received_count = 0;
+            this.next_piece = 0;
+            this.generation++;
+        }
+
+        final int chunk;
+        final byte[] hash;
+        final int length;
+        final boolean is_index;
+        final int pieces;
+        ByteBuffer buffer;
+        boolean[] received;
+        int received_count;
+        int next_piece;
+        int generation;
+        int attempt;
+    }
+
+    private static class Piece
+    {
+        Piece(Job job, int index)
+        {
+            this.job = job;
+            this.index = index;
+            this.generation = job.generation;
+        }
+
+        final Job job;
+        final int index;
+        final int generation;
+        int attempt;
+        long sent_ns;
+    }
+
+    ChunkTransfer(Peer peer, ChunkStore store, Executor executor, Manifest manifest, List<Peer.RoutingTableEntry> holders, FileChannel output)
+    {
+        this.m_peer = peer;
+        this.m_store = store;
+        this.m_executor = executor;
+        this.m_manifest = manifest;
+        this.m_holders = new ArrayList<>(holders);
+        this.m_output = output;
+        this.m_queue = new ArrayDeque<>();
+        this.m_active = new ArrayList<>(CHUNKS_IN_FLIGHT);
+        this.m_retry = new ArrayDeque<>();
+        this.m_result = new CompletableFuture<>();
+    }
+
+    public CompletableFuture<Result> Start()
+    {
+        this.m_started_ns = System.nanoTime();
+
+        try
+        {
+            int per_index = m_manifest.HashesPerIndex();
+
+            for(int i = 0; i < m_manifest.index.length; i++)
+            {
+                int first = i * per_index;
+                int count = Math.min(per_index, m_manifest.ChunkCount() - first);
+                ByteBuffer local = m_store.Read(m_manifest.index[i], 0, count * ChunkStore.HASH_SIZE);
+
+                if(local != null && local.remaining() == count * ChunkStore.HASH_SIZE)
+                    EnqueueChunks(first, Manifest.ReadHashes(local));
+                else synchronized (this)
+                {
+                    m_queue.add(new Job(i, m_manifest.index[i], count * ChunkStore.HASH_SIZE, true));
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            Fail(e.toString());
+        }
+
+        Pump();
+        return m_result;
+    }
+
+    private void Pump()
+    {
+        List<Piece> to_request = new ArrayList<>();
+
+        synchronized (this)
+        {
+            if(m_result.isDone())
+                return;
+
+            Piece piece;
+            while(m_in_flight < (int) m_window && (piece = NextPiece()) != null)
+            {
+                m_in_flight++;
+                to_request.add(piece);
+            }
+
+            if(m_in_flight == 0 && m_completing == 0 && m_active.isEmpty() && m_queue.isEmpty())
+            {
+                m_result.complete(new Result(m_bytes, m_chunks, m_retransmits, System.nanoTime() - m_started_ns));
+                return;
+            }
+
+            if(!to_request.isEmpty() && m_holders.isEmpty())
+            {
+                Fail("no holders to fetch chunks from");
+                return;
+            }
+        }
+
+        for(var piece : to_request)
+            Request(piece);
+    }
+
+    // Retransmissions first, then the next unrequested piece of the chunks being assembled,
+    // taking on another chunk when all their pieces are out. Chunks still being verified count
+    // towards the limit, so a slow disk holds back fetching rather than piling chunks up.
+    private Piece NextPiece()
+    {
+        if(!m_retry.isEmpty())
+            return m_retry.poll();
+
+        while(true)
+        {
+            for(var job : m_active)
+            {
+                if(job.next_piece < job.pieces)
+                    return new Piece(job, job.next_piece++);
+            }
+
+            if(m_active.size() + m_completing >= CHUNKS_IN_FLIGHT || m_queue.isEmpty())
+                return null;
+
+            Job job = m_queue.poll();
+            job.buffer = ByteBuffer.allocate(job.length);
+            job.Reset();
+            m_active.add(job);
+        }
+    }
+
+    private void Request(Piece piece)
+    {
+        Job job = piece.job;
+        Peer.RoutingTableEntry holder = m_holders.get(Math.floorMod(job.chunk + job.attempt + piece.attempt, m_holders.size()));
+        int offset = piece.index * PIECE_SIZE;
+        long timeout_ms;
+
+        synchronized (this)
+        {
+            timeout_ms = (long) m_rto_ms;
+        }
+
+        try
+        {
+            piece.sent_ns = System.nanoTime();
+            m_peer.SendChunkRequest(holder, job.hash, offset, Math.min(PIECE_SIZE, job.length - offset), timeout_ms)
+                  .whenComplete((frame, error) -> OnPiece(piece, frame, error));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            OnPiece(piece, null, e);
+        }
+    }
+
+    private void OnPiece(Piece piece, Frame frame, Throwable error)
+    {
+        Job job = piece.job;
+        Job completed = null;
+
+        synchronized (this)
+        {
+            m_in_flight--;
+
+            if(m_result.isDone())
+                return;
+
+            int offset = piece.index * PIECE_SIZE;
+            int length = Math.min(PIECE_SIZE, job.length - offset);
+            ByteBuffer data = (error == null && frame != null) ? ReadPiece(frame) : null;
+
+            // Pieces requested before the chunk was restarted are dropped.
+            boolean current = piece.generation == job.generation;
+
+            if(current && (data == null || data.remaining() != length))
+            {
+                m_retransmits++;
+                OnLoss();
+
+                if(++piece.attempt > MAX_ATTEMPTS)
+                {
+                    Fail("chunk (" + job.chunk + ") could not be fetched from any holder");
+                    return;
+                }
+                m_retry.add(piece);
+            }
+            else if(current && !job.received[piece.index])
+            {
+                job.buffer.put(offset, data, data.position(), length);
+                job.received[piece.index] = true;
+                m_bytes += length;
+                OnRoundTrip((System.nanoTime() - piece.sent_ns) / 1e6);
+                m_window = Math.min(MAX_WINDOW, m_window + ((m_window < m_threshold) ? 1 : 1 / m_window));
+
+                if(++job.received_count == job.pieces)
+                {
+                    m_active.remove(job);
+                    m_completing++;
+                    completed = job;
+                }
+            }
+        }
+
+        if(completed != null)
+            Complete(completed);
+        Pump();
+    }
+
+    // Verifies the assembled chunk and hands it on; a chunk that fails its hash is fetched again,
+    // starting from a different holder. The pieces of other chunks keep flowing meanwhile.
+    private void Complete(Job job)
+    {
+        try
+        {
+            m_executor.execute(() ->
+            {
+                try
+                {
+                    Verify(job);
+                }
+                finally
+                {
+                    synchronized (this)
+                    {
+                        m_completing--;
+                    }
+                }
+                Pump();
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            synchronized (this)
+            {
+                m_completing--;
+            }
+            Fail("the peer is shutting down");
+        }
+    }
+
+    private void Verify(Job job)
+    {
+        try
+        {
+            if(!MessageDigest.isEqual(job.hash, ChunkStore.Hash(job.buffer)))
+            {
+                synchronized (this)
+                {
+                    if(++job.attempt > MAX_ATTEMPTS)
+                    {
+                        Fail("chunk (" + job.chunk + ") failed its hash check from every holder");
+                        return;
+                    }
+
+                    job.Reset();
+                    m_active.add(job);
+                }
+                return;
+            }
+
+            if(job.is_index)
+            {
+                m_store.WriteVerified(job.hash, job.buffer);
+                EnqueueChunks(job.chunk * m_manifest.HashesPerIndex(), Manifest.ReadHashes(job.buffer.duplicate()));
+            }
+            else if(m_output != null)
+                WriteOutput(job.chunk, job.buffer);
+            else m_store.WriteVerified(job.hash, job.buffer);
+
+            synchronized (this)
+            {
+                m_chunks++;
+            }
+        }
+        catch (IOException e)
+        {
+            Fail(e.toString());
+        }
+    }
+
+    // Retransmission timeout from the smoothed round trip time and its variation, as TCP does.
+    private void OnRoundTrip(double rtt_ms)
+    {
+        if(m_srtt_ms == 0)
+        {
+            m_srtt_ms = rtt_ms;
+            m_rttvar_ms = rtt_ms / 2;
+        }
+        else
+        {
+            m_rttvar_ms = 0.75 * m_rttvar_ms + 0.25 * Math.abs(m_srtt_ms - rtt_ms);
+            m_srtt_ms = 0.875 * m_srtt_ms + 0.125 * rtt_ms;
+        }
+        m_rto_ms = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, m_srtt_ms + 4 * m_rttvar_ms));
+    }
+
+    private void OnLoss()
+    {
+        long now = System.nanoTime();
+
+        if(now - m_last_loss_ns < LOSS_INTERVAL_NS)
+            return;
+
+        m_last_loss_ns = now;
+        m_threshold = Math.max(MIN_WINDOW, m_window / 2);
+        m_window = m_threshold;
+    }
+
+    private void EnqueueChunks(int first, byte[][] hashes) throws IOException
+    {
+        for(int i = 0; i < hashes.length; i++)
+        {
+            int chunk = first + i;
+            int length = m_manifest.ChunkLength(chunk);
+
+            if(m_store.Has(hashes[i]))
+            {
+                if(m_output != null)
+                    WriteOutput(chunk, m_store.Read(hashes[i], 0, length));
+                continue;
+            }
+
+            synchronized (this)
+            {
+                m_queue.add(new Job(chunk, hashes[i], length, false));
+            }
+        }
+    }
+
+    private void WriteOutput(int chunk, ByteBuffer data) throws IOException
+    {
+        long position = (long) chunk * m_manifest.chunk_size;
+        ByteBuffer source = data.duplicate().rewind();
+
+        while(source.hasRemaining())
+            position += m_output.write(source, position);
+    }
+
+    private static ByteBuffer ReadPiece(Frame frame)
+    {
+        try
+        {
+            if(frame.payload.get() != Codec.VALUE_FOUND)
+                return null;
+
+            int length = frame.payload.getInt();
+            return (length >= 0 && length <= frame.payload.remaining()) ? frame.payload.slice(frame.payload.position(), length) : null;
+        }
+        catch (RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    private void Fail(String reason)
+    {
+        m_result.completeExceptionally(new IOException("Transfer failed, " + reason));
+    }
+
+    private final Peer m_peer;
+    private final ChunkStore m_store;
+    private final Executor m_executor;
+    private final Manifest m_manifest;
+    private final List<Peer.RoutingTableEntry> m_holders;
+    private final FileChannel m_output;
+    private final ArrayDeque<Job> m_queue;
+    private final List<Job> m_active;
+    private final ArrayDeque<Piece> m_retry;
+    private final CompletableFuture<Result> m_result;
+    private long m_started_ns;
+    private int m_in_flight;
+    private int m_completing;
+    private long m_bytes;
+    private int m_chunks;
+    private long m_retransmits;
+    private double m_window = MIN_WINDOW;
+    private double m_threshold = MAX_WINDOW;
+    private long m_last_loss_ns = System.nanoTime() - LOSS_INTERVAL_NS;
+    private double m_srtt_ms;
+    private double m_rttvar_ms;
+    private double m_rto_ms = MAX_RTO_MS;
+
+    public static final int PIECE_SIZE = 1024;
+    private static final int MIN_WINDOW = 4;
+    private static final int MAX_WINDOW = 512;
+    private static final long LOSS_INTERVAL_NS = 1_000_000_000L;
+    private static final double MIN_RTO_MS = 200;
+    private static final double MAX_RTO_MS = 2_000;
+    private static final int CHUNKS_IN_FLIGHT = 8;
+    private static final int MAX_ATTEMPTS = 8;
+}
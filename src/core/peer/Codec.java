@@ -0,0 +1,178 @@
+package core.peer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Hand-written encoders and decoders for the payloads carried by a Frame.
+ * Every SizeOf matches the number of bytes written by the respective Write.
+ */
+public final class Codec
+{
+    public static int SizeOf(String value)
+    {
+        return Short.BYTES + Utf8Length(value);
+    }
+
+    public static void Write(ByteBuffer buffer, String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    public static String ReadString(ByteBuffer buffer)
+    {
+        int length = Short.toUnsignedInt(buffer.getShort());
+
+        if(!buffer.hasArray())
+        {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    public static int SizeOf(String[] values)
+    {
+        int size = Integer.BYTES;
+        for(var value : values)
+            size += SizeOf(value);
+        return size;
+    }
+
+    public static void Write(ByteBuffer buffer, String[] values)
+    {
+        buffer.putInt(values.length);
+        for(var value : values)
+            Write(buffer, value);
+    }
+
+    public static String[] ReadStrings(ByteBuffer buffer)
+    {
+        String[] values = new String[CheckCount(buffer, buffer.getInt(), Short.BYTES)];
+        for(int i = 0; i < values.length; i++)
+            values[i] = ReadString(buffer);
+        return values;
+    }
+
+    public static int SizeOf(Peer.RoutingTableEntry entry)
+    {
+        return SizeOf(entry.nick_name) + Long.BYTES + SizeOf(entry.ip_address) + Integer.BYTES;
+    }
+
+    public static void Write(ByteBuffer buffer, Peer.RoutingTableEntry entry)
+    {
+        Write(buffer, entry.nick_name);
+        buffer.putLong(entry.id.Value());
+        Write(buffer, entry.ip_address);
+        buffer.putInt(entry.port);
+    }
+
+    public static Peer.RoutingTableEntry ReadEntry(ByteBuffer buffer)
+    {
+        String nick_name = ReadString(buffer);
+        NodeId id = new NodeId(buffer.getLong());
+        String ip_address = ReadString(buffer);
+        int port = buffer.getInt();
+
+        return new Peer.RoutingTableEntry(nick_name, id, ip_address, port);
+    }
+
+    public static int SizeOf(Peer.RoutingTableEntry[] entries)
+    {
+        int size = Integer.BYTES;
+        for(var entry : entries)
+            size += SizeOf(entry);
+        return size;
+    }
+
+    public static void Write(ByteBuffer buffer, Peer.RoutingTableEntry[] entries)
+    {
+        buffer.putInt(entries.length);
+        for(var entry : entries)
+            Write(buffer, entry);
+    }
+
+    public static Peer.RoutingTableEntry[] ReadEntries(ByteBuffer buffer)
+    {
+        Peer.RoutingTableEntry[] entries = new Peer.RoutingTableEntry[CheckCount(buffer, buffer.getInt(), ENTRY_MIN_SIZE)];
+        for(int i = 0; i < entries.length; i++)
+            entries[i] = ReadEntry(buffer);
+        return entries;
+    }
+
+    public static int SizeOf(Peer.DataItem item)
+    {
+        return Byte.BYTES + SizeOf(item.key) + Long.BYTES + Long.BYTES + Integer.BYTES + item.ValueLength();
+    }
+
+    public static void Write(ByteBuffer buffer, Peer.DataItem item)
+    {
+        buffer.put((byte) ((item.is_file ? FLAG_FILE : 0) | (item.is_manifest ? FLAG_MANIFEST : 0) | (item.is_cached ? FLAG_CACHED : 0)));
+        Write(buffer, item.key);
+        buffer.putLong(item.version);
+        buffer.putLong(item.TimeToLive());
+        buffer.putInt(item.ValueLength());
+        item.WriteValue(buffer);
+    }
+
+    public static Peer.DataItem ReadDataItem(ByteBuffer buffer)
+    {
+        byte flags = buffer.get();
+        String key = ReadString(buffer);
+        long version = buffer.getLong();
+        long ttl_ms = buffer.getLong();
+        byte[] value = new byte[CheckCount(buffer, buffer.getInt(), 1)];
+        buffer.get(value);
+
+        Peer.DataItem item = new Peer.DataItem(key, value, (flags & FLAG_FILE) != 0);
+        item.is_manifest = (flags & FLAG_MANIFEST) != 0;
+        item.is_cached = (flags & FLAG_CACHED) != 0;
+        item.version = version;
+        item.SetTimeToLive(ttl_ms);
+        return item;
+    }
+
+    // Rejects counts that cannot possibly fit in what is left of the buffer, so a corrupt
+    // length never turns into a huge allocation.
+    private static int CheckCount(ByteBuffer buffer, int count, int min_element_size)
+    {
+        if(count < 0 || (long) count * min_element_size > buffer.remaining())
+            throw new IllegalArgumentException("Malformed payload, count (" + count + ") exceeds remaining bytes");
+        return count;
+    }
+
+    private static int Utf8Length(String value)
+    {
+        int length = 0;
+        for(int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            if(c < 0x80) length += 1;
+            else if(c < 0x800) length += 2;
+            else if(Character.isHighSurrogate(c)) { length += 4; i++; }
+            else length += 3;
+        }
+        return length;
+    }
+
+    // First byte of a FIND_VALUE_RESPONSE: the data item follows, or the closest peers do. A
+    // CHUNK_RESPONSE uses the same flag for whether the piece follows.
+    public static final byte VALUE_FOUND = 1;
+    public static final byte VALUE_NOT_FOUND = 0;
+
+    // First byte of an encoded data item.
+    private static final byte FLAG_FILE = 1;
+    private static final byte FLAG_MANIFEST = 2;
+    private static final byte FLAG_CACHED = 4;
+
+    private static final int ENTRY_MIN_SIZE = Short.BYTES + Long.BYTES + Short.BYTES + Integer.BYTES;
+
+    private Codec() {}
+}
@@ -0,0 +1,115 @@
+package core.peer;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Outstanding requests waiting for a response, keyed by request id. Ids come from a counter, so
+ * a slot is picked by the low bits of the id and no hashing or boxing is needed. The table
+ * never grows: registering over a slot whose request is still pending fails the older one, and
+ * every entry is failed by the timer wheel once its timeout passes.
+ */
+public class CorrelationTable
+{
+    private static class Pending
+    {
+        Pending(long request_id, InetSocketAddress address)
+        {
+            this.request_id = request_id;
+            this.address = address;
+            this.future = new CompletableFuture<>();
+        }
+
+        final long request_id;
+        final InetSocketAddress address;
+        final CompletableFuture<Frame> future;
+        volatile TimerWheel.Timeout timeout;
+    }
+
+    public CorrelationTable(int capacity, TimerWheel timers)
+    {
+        assert Integer.bitCount(capacity) == 1;
+
+        this.m_slots = new AtomicReferenceArray<>(capacity);
+        this.m_mask = capacity - 1;
+        this.m_timers = timers;
+        this.m_completed = new AtomicLong(0);
+        this.m_expired = new AtomicLong(0);
+        this.m_evicted = new AtomicLong(0);
+    }
+
+    // The future completes with the first response to the request from `address`, or from any
+    // address when it is null. Completing or cancelling it in any way frees the slot.
+    public CompletableFuture<Frame> Register(long request_id, InetSocketAddress address, long timeout_ms)
+    {
+        int idx = (int) (request_id & m_mask);
+        Pending pending = new Pending(request_id, address);
+        Pending previous = m_slots.getAndSet(idx, pending);
+
+        if(previous != null && previous.future.completeExceptionally(new TimeoutException("Request (" + previous.request_id + ") evicted from a full correlation table")))
+            m_evicted.incrementAndGet();
+
+        pending.future.whenComplete((frame, e) -> {
+            m_slots.compareAndSet(idx, pending, null);
+
+            TimerWheel.Timeout timeout = pending.timeout;
+            if(timeout != null)
+                timeout.Cancel();
+        });
+
+        pending.timeout = m_timers.Schedule(timeout_ms, () -> {
+            if(pending.future.completeExceptionally(new TimeoutException("Request (" + request_id + ") timed out")))
+                m_expired.incrementAndGet();
+        });
+
+        return pending.future;
+    }
+
+    public boolean Complete(long request_id, InetSocketAddress source, Frame frame)
+    {
+        Pending pending = m_slots.get((int) (request_id & m_mask));
+
+        if(pending == null || pending.request_id != request_id)
+            return false;
+
+        if(pending.address != null && !pending.address.equals(source))
+            return false;
+
+        if(!pending.future.complete(frame.Detach()))
+            return false;
+
+        m_completed.incrementAndGet();
+        return true;
+    }
+
+    public int Pending()
+    {
+        int count = 0;
+        for(int i = 0; i < m_slots.length(); i++)
+        {
+            if(m_slots.get(i) != null)
+                count++;
+        }
+        return count;
+    }
+
+    public void PrintStats()
+    {
+        System.out.println("Outstanding Requests\n----------------");
+        System.out.format("%-25s [%d/%d]\n", "Pending:", Pending(), m_slots.length());
+        System.out.format("%-25s [%d]\n", "Completed:", m_completed.get());
+        System.out.format("%-25s [%d]\n", "Timed Out:", m_expired.get());
+        System.out.format("%-25s [%d]\n", "Evicted:", m_evicted.get());
+        System.out.println("----------------");
+    }
+
+    private final AtomicReferenceArray<Pending> m_slots;
+    private final int m_mask;
+    private final TimerWheel m_timers;
+    private final AtomicLong m_completed;
+    private final AtomicLong m_expired;
+    private final AtomicLong m_evicted;
+}
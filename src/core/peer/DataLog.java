@@ -0,0 +1,403 @@
+package core.peer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/*
+ * Append-only log persisting the data table across restarts. Every put or delete appends one
+ * CRC-checked record and an in-memory index maps each live key to its latest record. The log is
+ * compacted into a fresh file once more than half of it is overwritten or deleted records, and
+ * a checkpoint snapshots the index so startup only has to scan what was appended since. A torn
+ * or corrupt tail is cut off at the first record that fails its CRC.
+ *
+ * Log:    [magic int][generation long] then records
+ * Record: [crc int][length int][type byte][key long][data item, expiry long, puts only]
+ * Index:  [magic int][generation long][log length long][live bytes long][count int][key long, offset long]... [crc int]
+ */
+public class DataLog implements DataStore.Persistence
+{
+    public DataLog(Path directory) throws IOException
+    {
+        Files.createDirectories(directory);
+
+        this.m_log_path = directory.resolve("data.log");
+        this.m_index_path = directory.resolve("data.idx");
+        this.m_index = new HashMap<>();
+        this.m_crc = new CRC32C();
+
+        Open();
+    }
+
+    @Override
+    public synchronized void Append(NodeId key, Peer.DataItem item, boolean pinned)
+    {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + Codec.SizeOf(item) + Long.BYTES);
+        record.position(RECORD_HEADER);
+        Codec.Write(record, item);
+        record.putLong(item.expiry_ms);
+
+        Write(key, record, pinned ? PUT_PINNED : PUT);
+    }
+
+    @Override
+    public synchronized void Delete(NodeId key)
+    {
+        if(m_index.containsKey(key))
+            Write(key, ByteBuffer.allocate(RECORD_HEADER), DELETE);
+    }
+
+    // Reads every live item back, in no particular order.
+    @Override
+    public synchronized void Load(DataStore.Persistence.Loader loader)
+    {
+        for(var entry : m_index.entrySet())
+        {
+            try
+            {
+                ByteBuffer record = ReadRecord(entry.getValue());
+                record.position(RECORD_HEADER);
+                Peer.DataItem item = Codec.ReadDataItem(record);
+
+                // The item carries its lifetime relative to when it was logged; the absolute
+                // expiry follows it, except in records written before it was logged.
+                if(record.remaining() >= Long.BYTES)
+                    item.expiry_ms = record.getLong();
+                loader.Accept(entry.getKey(), item, record.get(2 * Integer.BYTES) == PUT_PINNED);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                System.out.println("Error: unreadable record for key (" + entry.getKey() + ") in " + m_log_path);
+            }
+        }
+    }
+
+    // Flushes the log, compacts it when mostly dead and snapshots the index.
+    @Override
+    public synchronized void Checkpoint()
+    {
+        try
+        {
+            m_log.force(false);
+
+            if(m_log_length > COMPACT_MIN_BYTES && m_live_bytes * 2 < m_log_length - LOG_HEADER)
+                Compact();
+
+            WriteIndexSnapshot();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Error: checkpoint of " + m_log_path + " failed (" + e + ")");
+        }
+    }
+
+    @Override
+    public synchronized void Close()
+    {
+        Checkpoint();
+
+        try
+        {
+            m_log.close();
+        }
+        catch (IOException ignored) {}
+    }
+
+    @Override
+    public synchronized void PrintStats()
+    {
+        System.out.println("Data Log\n----------------");
+        System.out.format("%-25s [%s]\n", "Path:", m_log_path);
+        System.out.format("%-25s [%d]\n", "Live Keys:", m_index.size());
+        System.out.format("%-25s [%d/%d]\n", "Live/Log Bytes:", m_live_bytes, m_log_length);
+        System.out.format("%-25s [%d]\n", "Compactions:", m_compactions);
+        System.out.format("%-25s [%d]\n", "Records Scanned:", m_scanned);
+        System.out.format("%-25s [%d]\n", "Recovery Time (ms):", m_recovery_ms);
+        System.out.println("----------------");
+    }
+
+    private void Open() throws IOException
+    {
+        long started = System.currentTimeMillis();
+        this.m_log = FileChannel.open(m_log_path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if(m_log.size() < LOG_HEADER || !ReadLogHeader())
+        {
+            m_log.truncate(0);
+            this.m_generation = System.nanoTime();
+            this.m_log_length = LOG_HEADER;
+            WriteLogHeader(m_log, m_generation);
+        }
+
+        long scan_from = LoadIndexSnapshot() ? m_log_length : LOG_HEADER;
+
+        if(scan_from == LOG_HEADER)
+        {
+            m_index.clear();
+            m_live_bytes = 0;
+        }
+
+        Scan(scan_from);
+        this.m_recovery_ms = System.currentTimeMillis() - started;
+    }
+
+    // Replays records from the given offset, truncating the log at the first bad one.
+    private void Scan(long offset) throws IOException
+    {
+        long size = m_log.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+
+        while(offset + RECORD_HEADER <= size)
+        {
+            header.clear();
+            m_log.read(header, offset);
+            int length = header.getInt(Integer.BYTES);
+
+            if(length < RECORD_HEADER - 2 * Integer.BYTES || offset + 2 * Integer.BYTES + length > size)
+                break;
+
+            ByteBuffer record = ReadRecord(offset);
+            if(record == null)
+                break;
+
+            Apply(record.get(2 * Integer.BYTES) != DELETE, new NodeId(record.getLong(2 * Integer.BYTES + 1)), offset, record.capacity());
+            offset += record.capacity();
+            m_scanned++;
+        }
+
+        if(offset < size)
+            m_log.truncate(offset);
+        this.m_log_length = offset;
+    }
+
+    private void Write(NodeId key, ByteBuffer record, byte type)
+    {
+        record.put(2 * Integer.BYTES, type);
+        record.putLong(2 * Integer.BYTES + 1, key.Value());
+        record.putInt(Integer.BYTES, record.capacity() - 2 * Integer.BYTES);
+        record.putInt(0, Checksum(record));
+
+        try
+        {
+            long offset = m_log_length;
+            record.position(0);
+
+            while(record.hasRemaining())
+                m_log.write(record, offset + record.position());
+
+            m_log_length += record.capacity();
+            Apply(type != DELETE, key, offset, record.capacity());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void Apply(boolean put, NodeId key, long offset, int record_size)
+    {
+        Long previous = put ? m_index.put(key, offset) : m_index.remove(key);
+
+        if(previous != null)
+            m_live_bytes -= RecordSize(previous);
+        if(put)
+            m_live_bytes += record_size;
+    }
+
+    // Returns the whole record at the offset, or null if it is incomplete or fails its CRC.
+    private ByteBuffer ReadRecord(long offset) throws IOException
+    {
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        m_log.read(length, offset + Integer.BYTES);
+
+        int size = 2 * Integer.BYTES + length.getInt(0);
+        if(size < RECORD_HEADER || offset + size > m_log.size())
+            return null;
+
+        ByteBuffer record = ByteBuffer.allocate(size);
+        while(record.hasRemaining() && m_log.read(record, offset + record.position()) > 0);
+
+        return (!record.hasRemaining() && record.getInt(0) == Checksum(record)) ? record.rewind() : null;
+    }
+
+    private int RecordSize(long offset)
+    {
+        try
+        {
+            ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+            m_log.read(length, offset + Integer.BYTES);
+            return 2 * Integer.BYTES + length.getInt(0);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int Checksum(ByteBuffer record)
+    {
+        m_crc.reset();
+        m_crc.update(record.duplicate().position(Integer.BYTES));
+        return (int) m_crc.getValue();
+    }
+
+    // Copies the live records into a fresh log and swaps it in. Nothing about the live log changes
+    // until the fresh one has replaced it on disk; if any step fails, the fresh log is discarded
+    // and appends carry on where they were.
+    private void Compact() throws IOException
+    {
+        Path compact_path = m_log_path.resolveSibling("data.log.compact");
+        Map<NodeId, Long> index = new HashMap<>(m_index.size() * 2);
+        long generation = System.nanoTime();
+        long length = LOG_HEADER;
+        FileChannel compact = FileChannel.open(compact_path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try
+        {
+            WriteLogHeader(compact, generation);
+
+            for(var entry : m_index.entrySet())
+            {
+                ByteBuffer record = ReadRecord(entry.getValue());
+                if(record == null)
+                    continue;
+
+                index.put(entry.getKey(), length);
+                while(record.hasRemaining())
+                    length += compact.write(record, length);
+            }
+            compact.force(true);
+
+            // The open channel follows the file across the move, so it becomes the live log.
+            Files.move(compact_path, m_log_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            compact.close();
+            Files.deleteIfExists(compact_path);
+            throw e;
+        }
+
+        FileChannel previous = m_log;
+        this.m_log = compact;
+
+        try
+        {
+            previous.close();
+        }
+        catch (IOException ignored) {}
+
+        this.m_generation = generation;
+        this.m_index.clear();
+        this.m_index.putAll(index);
+        this.m_log_length = length;
+        this.m_live_bytes = length - LOG_HEADER;
+        this.m_compactions++;
+    }
+
+    private void WriteLogHeader(FileChannel log, long generation) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER);
+        header.putInt(MAGIC_VALUE).putLong(generation).flip();
+        while(header.hasRemaining())
+            log.write(header, header.position());
+    }
+
+    private boolean ReadLogHeader() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER);
+        m_log.read(header, 0);
+
+        if(header.getInt(0) != MAGIC_VALUE)
+            return false;
+
+        this.m_generation = header.getLong(Integer.BYTES);
+        return true;
+    }
+
+    private void WriteIndexSnapshot() throws IOException
+    {
+        ByteBuffer snapshot = ByteBuffer.allocate(INDEX_HEADER + m_index.size() * 2 * Long.BYTES + Integer.BYTES);
+        snapshot.putInt(MAGIC_VALUE).putLong(m_generation).putLong(m_log_length).putLong(m_live_bytes).putInt(m_index.size());
+
+        for(var entry : m_index.entrySet())
+            snapshot.putLong(entry.getKey().Value()).putLong(entry.getValue());
+
+        m_crc.reset();
+        m_crc.update(snapshot.array(), 0, snapshot.position());
+        snapshot.putInt((int) m_crc.getValue());
+
+        Path temporary = m_index_path.resolveSibling("data.idx.tmp");
+        Files.write(temporary, snapshot.array());
+        Files.move(temporary, m_index_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Loads the index snapshot if it belongs to this log; the log length it records is where
+    // the scan for later records starts.
+    private boolean LoadIndexSnapshot()
+    {
+        try
+        {
+            if(!Files.exists(m_index_path))
+                return false;
+
+            ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(m_index_path));
+            if(snapshot.capacity() < INDEX_HEADER + Integer.BYTES)
+                return false;
+
+            m_crc.reset();
+            m_crc.update(snapshot.array(), 0, snapshot.capacity() - Integer.BYTES);
+
+            if(snapshot.getInt(snapshot.capacity() - Integer.BYTES) != (int) m_crc.getValue() || snapshot.getInt() != MAGIC_VALUE)
+                return false;
+
+            long generation = snapshot.getLong();
+            long log_length = snapshot.getLong();
+            long live_bytes = snapshot.getLong();
+            int count = snapshot.getInt();
+
+            if(generation != m_generation || log_length > m_log.size() || snapshot.remaining() != count * 2 * Long.BYTES + Integer.BYTES)
+                return false;
+
+            for(int i = 0; i < count; i++)
+                m_index.put(new NodeId(snapshot.getLong()), snapshot.getLong());
+
+            this.m_log_length = log_length;
+            this.m_live_bytes = live_bytes;
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    private final Path m_log_path;
+    private final Path m_index_path;
+    private final HashMap<NodeId, Long> m_index;
+    private final CRC32C m_crc;
+    private FileChannel m_log;
+    private long m_generation;
+    private long m_log_length;
+    private long m_live_bytes;
+    private long m_compactions;
+    private long m_scanned;
+    private long m_recovery_ms;
+
+    private static final int MAGIC_VALUE = 0xDA7A106;
+    private static final byte DELETE = 0;
+    private static final byte PUT = 1;
+    private static final byte PUT_PINNED = 2;
+    private static final int LOG_HEADER = Integer.BYTES + Long.BYTES;
+    private static final int RECORD_HEADER = 2 * Integer.BYTES + Byte.BYTES + Long.BYTES;
+    private static final int INDEX_HEADER = Integer.BYTES + 3 * Long.BYTES + Integer.BYTES;
+    private static final long COMPACT_MIN_BYTES = 1 << 20;
+}
@@ -0,0 +1,379 @@
+package core.peer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/*
+ * Data items held by this peer, bounded by a byte budget. Items are kept in least recently used
+ * order and evicted from the cold end once the budget is exceeded. Pinned items, those stored
+ * here by the user and those this node is responsible for, are never evicted. With TINY_LFU a
+ * new item only displaces a victim that has been asked for less often recently, so a burst of
+ * one-off items cannot flush the ones that are read repeatedly. Given a ValueArena, admitted
+ * values are moved off-heap and detached back onto the heap when they leave the store. Given a
+ * Persistence, every stored (not cached) item is written through to it and reloaded by Recover.
+ * Given a ChunkStore, a manifest holds references on its chunks while it is stored here, and
+ * the bytes of its chunks count against the budget along with the manifest itself.
+ */
+public class DataStore
+{
+    public enum Eviction
+    {
+        LRU,        // always admit, evict the least recently used item
+        TINY_LFU    // admit only items used more often than the item they would evict
+    }
+
+    // Durable copy of the stored items. Cached copies are never persisted.
+    public interface Persistence
+    {
+        interface Loader
+        {
+            void Accept(NodeId key, Peer.DataItem item, boolean pinned);
+        }
+
+        void Append(NodeId key, Peer.DataItem item, boolean pinned);
+        void Delete(NodeId key);
+        void Load(Loader loader);
+        void Checkpoint();
+        void Close();
+        void PrintStats();
+    }
+
+    public DataStore(long budget_bytes, Eviction eviction, Predicate<NodeId> responsible, ValueArena arena, Persistence persistence, ChunkStore chunks)
+    {
+        this.m_arena = arena;
+        this.m_chunks = chunks;
+        this.m_persistence = persistence;
+        this.m_budget_bytes = budget_bytes;
+        this.m_eviction = eviction;
+        this.m_responsible = responsible;
+        this.m_items = new LinkedHashMap<>();
+        this.m_pinned = new HashSet<>();
+        this.m_responsibility = new HashMap<>();
+        this.m_sketch = new FrequencySketch(EXPECTED_ENTRIES);
+    }
+
+    // Counts as a read: refreshes the item's recency and frequency, and the hit/miss counters.
+    public synchronized Peer.DataItem Get(NodeId key)
+    {
+        m_sketch.Increment(key);
+        Peer.DataItem item = m_items.remove(key);
+
+        if(item != null)
+        {
+            m_items.put(key, item);
+            m_hits++;
+        }
+        else m_misses++;
+        return item;
+    }
+
+    // Reads without counting as a use of the item.
+    public synchronized Peer.DataItem Peek(NodeId key)
+    {
+        return m_items.get(key);
+    }
+
+    public synchronized boolean Contains(NodeId key)
+    {
+        return m_items.containsKey(key);
+    }
+
+    // Stores the item, evicting unpinned items as needed. Returns false when the item was not
+    // admitted; a pinned item is always admitted, even past the budget.
+    public synchronized boolean Put(NodeId key, Peer.DataItem item, boolean pinned)
+    {
+        m_sketch.Increment(key);
+
+        Peer.DataItem existing = m_items.get(key);
+        long needed = SizeOf(item) - (existing == null ? 0 : SizeOf(existing));
+        boolean was_pinned = m_pinned.contains(key);
+        pinned |= was_pinned;
+
+        while(m_bytes + needed > m_budget_bytes)
+        {
+            NodeId victim = FindVictim(key);
+
+            if(victim == null || (!pinned && !Admit(key, victim)))
+            {
+                if(pinned)
+                    break;
+
+                m_rejected++;
+                return false;
+            }
+
+            Peer.DataItem evicted = m_items.remove(victim);
+            m_responsibility.remove(victim);
+            m_bytes -= SizeOf(evicted);
+            m_evicted++;
+            Detach(evicted);
+            Unlog(victim);
+        }
+
+        Log(key, existing, item, pinned, was_pinned);
+
+        if(existing != null && existing != item)
+            Detach(m_items.remove(key));
+
+        if(existing != item)
+            Attach(item);
+
+        m_items.remove(key);
+        m_items.put(key, item);
+        m_bytes += needed;
+
+        if(m_arena != null)
+            item.MoveOffHeap(m_arena);
+
+        if(pinned)
+            m_pinned.add(key);
+        return true;
+    }
+
+    // Last-writer-wins put for copies arriving from other nodes: the item is kept only if it is a
+    // newer version than the one held, and a cached copy never displaces a stored item, while a
+    // stored item always replaces a cached copy. A republished copy of the version held moves its
+    // expiry back instead. Returns false when the item was not kept.
+    public synchronized boolean Merge(NodeId key, Peer.DataItem item, boolean pinned)
+    {
+        Peer.DataItem existing = m_items.get(key);
+
+        if(existing != null && existing.IsCached() == item.IsCached() && existing.version == item.version)
+        {
+            Refresh(key, existing, item.expiry_ms);
+            return false;
+        }
+
+        if(existing != null && existing.IsCached() == item.IsCached() && existing.version > item.version)
+            return false;
+        if(existing != null && !existing.IsCached() && item.IsCached())
+            return false;
+        return Put(key, item, pinned);
+    }
+
+    private void Refresh(NodeId key, Peer.DataItem existing, long expiry_ms)
+    {
+        if(existing.expiry_ms == 0 || expiry_ms <= existing.expiry_ms)
+            return;
+
+        existing.expiry_ms = expiry_ms;
+        existing.refreshed_ms = System.currentTimeMillis();
+
+        if(m_persistence != null && !m_recovering && !existing.IsCached())
+            m_persistence.Append(key, existing, m_pinned.contains(key));
+    }
+
+    public synchronized Peer.DataItem Remove(NodeId key)
+    {
+        Peer.DataItem item = m_items.remove(key);
+
+        if(item != null)
+        {
+            m_bytes -= SizeOf(item);
+            m_pinned.remove(key);
+            m_responsibility.remove(key);
+            Detach(item);
+            Unlog(key);
+        }
+        return item;
+    }
+
+    // Removes the item only if it is still the one stored under the key.
+    public synchronized boolean Remove(NodeId key, Peer.DataItem item)
+    {
+        if(m_items.get(key) != item)
+            return false;
+
+        Remove(key);
+        return true;
+    }
+
+    public synchronized void Clear()
+    {
+        for(var entry : m_items.entrySet())
+        {
+            Detach(entry.getValue());
+            Unlog(entry.getKey());
+        }
+
+        m_items.clear();
+        m_pinned.clear();
+        m_responsibility.clear();
+        m_bytes = 0;
+    }
+
+    // Reloads the persisted items; those no longer admitted under the budget are dropped from
+    // the log. Returns the number of items recovered.
+    public synchronized int Recover()
+    {
+        if(m_persistence == null)
+            return 0;
+
+        int before = m_items.size();
+        m_recovering = true;
+
+        try
+        {
+            m_persistence.Load((key, item, pinned) ->
+            {
+                if(!Put(key, item, pinned))
+                    m_persistence.Delete(key);
+            });
+        }
+        finally
+        {
+            m_recovering = false;
+        }
+        return m_items.size() - before;
+    }
+
+    public void Checkpoint()
+    {
+        if(m_persistence != null)
+            m_persistence.Checkpoint();
+    }
+
+    public void Close()
+    {
+        if(m_persistence != null)
+            m_persistence.Close();
+    }
+
+    public synchronized int Size()
+    {
+        return m_items.size();
+    }
+
+    public synchronized boolean IsEmpty()
+    {
+        return m_items.isEmpty();
+    }
+
+    // Key-ordered copy, for iterating without holding the store.
+    public synchronized NavigableMap<NodeId, Peer.DataItem> Snapshot()
+    {
+        return new TreeMap<>(m_items);
+    }
+
+    public synchronized void PrintStats()
+    {
+        System.out.println("Data Store (" + m_eviction + ")\n----------------");
+        System.out.format("%-25s [%d]\n", "Items:", m_items.size());
+        System.out.format("%-25s [%d]\n", "Pinned:", m_pinned.size());
+        System.out.format("%-25s [%d/%d]\n", "Bytes:", m_bytes, m_budget_bytes);
+        System.out.format("%-25s [%d]\n", "Hits:", m_hits);
+        System.out.format("%-25s [%d]\n", "Misses:", m_misses);
+        System.out.format("%-25s [%d]\n", "Evicted:", m_evicted);
+        System.out.format("%-25s [%d]\n", "Rejected:", m_rejected);
+        System.out.println("----------------");
+
+        if(m_arena != null)
+            m_arena.PrintStats();
+        if(m_persistence != null)
+            m_persistence.PrintStats();
+    }
+
+    // Forgets which keys this node was found responsible for, once peers joined or left or the
+    // replication settings changed. Does not wait for the store.
+    public void InvalidateResponsibility()
+    {
+        m_responsibility_stale = true;
+    }
+
+    // Least recently used item that may be evicted. Responsibility is checked here rather than
+    // at insert time because it changes as peers join and leave; each key's answer is cached
+    // until InvalidateResponsibility, as finding it scans the routing table.
+    private NodeId FindVictim(NodeId incoming)
+    {
+        if(m_responsibility_stale)
+        {
+            m_responsibility_stale = false;
+            m_responsibility.clear();
+        }
+
+        for(var key : m_items.keySet())
+        {
+            if(!key.equals(incoming) && !m_pinned.contains(key) && !m_responsibility.computeIfAbsent(key, m_responsible::test))
+                return key;
+        }
+        return null;
+    }
+
+    private void Attach(Peer.DataItem item)
+    {
+        Manifest manifest = ManifestOf(item);
+        if(manifest != null)
+            m_chunks.Retain(manifest);
+    }
+
+    // Called for every item leaving the store, evicted, replaced or removed.
+    private void Detach(Peer.DataItem item)
+    {
+        Manifest manifest = ManifestOf(item);
+        if(manifest != null)
+            m_chunks.Release(manifest);
+
+        if(m_arena != null)
+            item.Detach(m_arena);
+    }
+
+    // Cached copies of a manifest hold no chunks here, so they reference none.
+    private Manifest ManifestOf(Peer.DataItem item)
+    {
+        return (m_chunks != null && item.is_manifest && !item.is_cached) ? Manifest.Decode(item.Value()) : null;
+    }
+
+    // Writes the put through to the log, unless it is a cached copy or the same version of an
+    // item already logged, as re-shared items arrive again and again.
+    private void Log(NodeId key, Peer.DataItem existing, Peer.DataItem item, boolean pinned, boolean was_pinned)
+    {
+        if(m_persistence == null || m_recovering)
+            return;
+
+        if(item.IsCached())
+            m_persistence.Delete(key);
+        else if(existing == null || existing.IsCached() || existing.version != item.version || existing.ValueLength() != item.ValueLength() || pinned != was_pinned)
+            m_persistence.Append(key, item, pinned);
+    }
+
+    private void Unlog(NodeId key)
+    {
+        if(m_persistence != null)
+            m_persistence.Delete(key);
+    }
+
+    private boolean Admit(NodeId candidate, NodeId victim)
+    {
+        return m_eviction == Eviction.LRU || m_sketch.Frequency(candidate) > m_sketch.Frequency(victim);
+    }
+
+    private static long SizeOf(Peer.DataItem item)
+    {
+        return item.ValueLength() + item.ChunkedLength() + 2L * item.key.length() + ITEM_OVERHEAD;
+    }
+
+    private final ValueArena m_arena;
+    private final Persistence m_persistence;
+    private final ChunkStore m_chunks;
+    private final long m_budget_bytes;
+    private final Eviction m_eviction;
+    private final Predicate<NodeId> m_responsible;
+    private final LinkedHashMap<NodeId, Peer.DataItem> m_items;
+    private final HashSet<NodeId> m_pinned;
+    private final HashMap<NodeId, Boolean> m_responsibility;
+    private final FrequencySketch m_sketch;
+    private long m_bytes;
+    private long m_hits;
+    private long m_misses;
+    private long m_evicted;
+    private long m_rejected;
+    private boolean m_recovering;
+    private volatile boolean m_responsibility_stale;
+
+    private static final int EXPECTED_ENTRIES = 1 << 12;
+    private static final int ITEM_OVERHEAD = 96;
+}
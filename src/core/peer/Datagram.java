@@ -0,0 +1,36 @@
+package core.peer;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A received datagram and the pooled buffer holding it. Every frame decoded from the buffer
+ * holds a reference; the buffer goes back to its pool once the last of them is released.
+ */
+public class Datagram
+{
+    public Datagram(BufferPool pool, ByteBuffer buffer, InetSocketAddress address)
+    {
+        this.m_pool = pool;
+        this.buffer = buffer;
+        this.address = address;
+        this.m_references = new AtomicInteger(1);
+    }
+
+    public void Retain()
+    {
+        m_references.incrementAndGet();
+    }
+
+    public void Release()
+    {
+        if(m_references.decrementAndGet() == 0 && m_pool != null)
+            m_pool.Release(buffer);
+    }
+
+    public final ByteBuffer buffer;
+    public final InetSocketAddress address;
+    private final BufferPool m_pool;
+    private final AtomicInteger m_references;
+}
@@ -0,0 +1,218 @@
+package core.peer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Phi accrual failure detector (Hayashibara et al.) over every frame heard from each peer, not
+ * only pongs. The gaps between hearing from a peer are kept over a sliding window, and phi
+ * grows with how unlikely the current silence is given their mean and deviation: phi = 8 means
+ * a live peer stays this quiet about once in 10^8 times. Gaps shorter than MIN_SAMPLE_MS are not
+ * sampled, so bursts of traffic do not shrink the expected gap, and the deviation is floored at
+ * MIN_STD_MS, so a peer heard from like clockwork is not suspected the moment it is late.
+ * Round trips of the pings sent to quiet peers give a smoothed RTT and jitter per peer, from
+ * which the ping timeout is taken.
+ */
+class FailureDetector
+{
+    private static class History
+    {
+        History(long now_ms)
+        {
+            this.last_heard_ms = now_ms;
+            Add(SEED_INTERVAL_MS);
+        }
+
+        void Add(long interval_ms)
+        {
+            if(count == WINDOW)
+            {
+                long oldest = intervals[next];
+                sum -= oldest;
+                sum_squares -= (double) oldest * oldest;
+            }
+            else count++;
+
+            intervals[next] = interval_ms;
+            next = (next + 1) % WINDOW;
+            sum += interval_ms;
+            sum_squares += (double) interval_ms * interval_ms;
+        }
+
+        double Phi(long now_ms)
+        {
+            double mean = sum / count;
+            double deviation = Math.max(MIN_STD_MS, Math.sqrt(Math.max(0, sum_squares / count - mean * mean)));
+            double y = (now_ms - last_heard_ms - mean - ACCEPTABLE_PAUSE_MS) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+
+            // Logistic approximation of the normal CDF, as used by Akka and Cassandra.
+            return Math.max(0.0, (y > 0) ? -Math.log10(e / (1.0 + e)) : -Math.log10(1.0 - 1.0 / (1.0 + e)));
+        }
+
+        final long[] intervals = new long[WINDOW];
+        int count;
+        int next;
+        double sum;
+        double sum_squares;
+        long last_heard_ms;
+        double srtt_ms;
+        double rttvar_ms;
+    }
+
+    FailureDetector()
+    {
+        this.m_histories = new ConcurrentHashMap<>();
+        this.m_probes_sent = new AtomicLong(0);
+        this.m_probes_skipped = new AtomicLong(0);
+        this.m_evicted = new AtomicLong(0);
+    }
+
+    // Starts tracking a peer that was just heard from.
+    void Track(NodeId id)
+    {
+        m_histories.computeIfAbsent(id, k -> new History(System.currentTimeMillis()));
+    }
+
+    void Forget(NodeId id)
+    {
+        m_histories.remove(id);
+    }
+
+    // Any frame from a tracked peer shows it is alive.
+    void Heard(NodeId id)
+    {
+        History history = m_histories.get(id);
+        if(history == null)
+            return;
+
+        long now = System.currentTimeMillis();
+
+        synchronized (history)
+        {
+            long interval = now - history.last_heard_ms;
+
+            if(interval >= MIN_SAMPLE_MS)
+                history.Add(interval);
+            history.last_heard_ms = now;
+        }
+    }
+
+    void OnRoundTrip(NodeId id, double rtt_ms)
+    {
+        History history = m_histories.get(id);
+        if(history == null)
+            return;
+
+        synchronized (history)
+        {
+            if(history.srtt_ms == 0)
+            {
+                history.srtt_ms = rtt_ms;
+                history.rttvar_ms = rtt_ms / 2;
+            }
+            else
+            {
+                history.rttvar_ms = 0.75 * history.rttvar_ms + 0.25 * Math.abs(history.srtt_ms - rtt_ms);
+                history.srtt_ms = 0.875 * history.srtt_ms + 0.125 * rtt_ms;
+            }
+        }
+    }
+
+    // Ping timeout for the peer from its RTT and jitter, MAX_TIMEOUT_MS until one is measured.
+    long Timeout(NodeId id)
+    {
+        History history = m_histories.get(id);
+        if(history == null)
+            return MAX_TIMEOUT_MS;
+
+        synchronized (history)
+        {
+            if(history.srtt_ms == 0)
+                return MAX_TIMEOUT_MS;
+            return (long) Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, history.srtt_ms + 4 * history.rttvar_ms));
+        }
+    }
+
+    boolean IsTracked(NodeId id)
+    {
+        return m_histories.containsKey(id);
+    }
+
+    // True when the peer has not been heard from for long enough to be worth a ping. Untracked
+    // peers, never heard from since they were added, always are.
+    boolean IsQuiet(NodeId id)
+    {
+        History history = m_histories.get(id);
+        if(history == null)
+            return true;
+
+        synchronized (history)
+        {
+            return System.currentTimeMillis() - history.last_heard_ms >= PROBE_AFTER_MS;
+        }
+    }
+
+    boolean IsSuspected(NodeId id)
+    {
+        return Phi(id) > PHI_THRESHOLD;
+    }
+
+    double Phi(NodeId id)
+    {
+        History history = m_histories.get(id);
+        if(history == null)
+            return 0;
+
+        synchronized (history)
+        {
+            return history.Phi(System.currentTimeMillis());
+        }
+    }
+
+    void OnProbe(boolean sent)
+    {
+        (sent ? m_probes_sent : m_probes_skipped).incrementAndGet();
+    }
+
+    void OnEvicted()
+    {
+        m_evicted.incrementAndGet();
+    }
+
+    void PrintStats()
+    {
+        System.out.println("Failure Detector\n----------------");
+        System.out.format("%-25s [%d]\n", "Tracked Peers:", m_histories.size());
+        System.out.format("%-25s [%d]\n", "Probes Sent:", m_probes_sent.get());
+        System.out.format("%-25s [%d]\n", "Probes Skipped:", m_probes_skipped.get());
+        System.out.format("%-25s [%d]\n", "Evicted:", m_evicted.get());
+
+        for(var entry : m_histories.entrySet())
+        {
+            History history = entry.getValue();
+
+            synchronized (history)
+            {
+                System.out.format("%-25s [rtt %.1f ms, jitter %.1f ms, phi %.2f]\n", "Peer " + entry.getKey() + ":",
+                                  history.srtt_ms, history.rttvar_ms, history.Phi(System.currentTimeMillis()));
+            }
+        }
+        System.out.println("----------------");
+    }
+
+    private final ConcurrentHashMap<NodeId, History> m_histories;
+    private final AtomicLong m_probes_sent;
+    private final AtomicLong m_probes_skipped;
+    private final AtomicLong m_evicted;
+
+    private static final int WINDOW = 100;
+    private static final long SEED_INTERVAL_MS = 10_000;
+    private static final long MIN_SAMPLE_MS = 1_000;
+    private static final double MIN_STD_MS = 2_000;
+    private static final long ACCEPTABLE_PAUSE_MS = 10_000;
+    private static final long PROBE_AFTER_MS = 15_000;
+    private static final double PHI_THRESHOLD = 8;
+    private static final long MIN_TIMEOUT_MS = 200;
+    private static final long MAX_TIMEOUT_MS = 2_000;
+}
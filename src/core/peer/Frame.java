@@ -0,0 +1,110 @@
+package core.peer;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Wire format of every message exchanged between peers.
+ *
+ * | magic (4) | version (1) | opcode (1) | request id (8) | sender id (8) | payload length (4) | payload |
+ *
+ * All fields are big-endian. The payload is decoded by the handler of the opcode through Codec.
+ */
+public class Frame
+{
+    public Frame(byte opcode, long request_id, long sender_id, ByteBuffer payload)
+    {
+        this(opcode, request_id, sender_id, payload, null);
+    }
+
+    private Frame(byte opcode, long request_id, long sender_id, ByteBuffer payload, Datagram source)
+    {
+        this.opcode = opcode;
+        this.request_id = request_id;
+        this.sender_id = sender_id;
+        this.payload = payload;
+        this.m_source = source;
+    }
+
+    public static ByteBuffer Allocate(byte opcode, long request_id, long sender_id, int payload_length)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload_length);
+        WriteHeader(buffer, opcode, request_id, sender_id, payload_length);
+        return buffer;
+    }
+
+    public static void WriteHeader(ByteBuffer buffer, byte opcode, long request_id, long sender_id, int payload_length)
+    {
+        buffer.putInt(MAGIC_VALUE);
+        buffer.put(VERSION);
+        buffer.put(opcode);
+        buffer.putLong(request_id);
+        buffer.putLong(sender_id);
+        buffer.putInt(payload_length);
+    }
+
+    public static Frame Decode(ByteBuffer buffer)
+    {
+        return Decode(buffer, null);
+    }
+
+    // Decodes the frame starting at the buffer's position and advances past it. The payload is
+    // a slice of the buffer, so a frame decoded from a pooled datagram must be released.
+    // Returns null when the bytes do not hold a complete frame of this version.
+    public static Frame Decode(ByteBuffer buffer, Datagram source)
+    {
+        int start = buffer.position();
+
+        if(buffer.remaining() < HEADER_SIZE)
+            return null;
+
+        if(buffer.getInt(start) != MAGIC_VALUE || buffer.get(start + 4) != VERSION)
+            return null;
+
+        byte opcode = buffer.get(start + 5);
+        long request_id = buffer.getLong(start + 6);
+        long sender_id = buffer.getLong(start + 14);
+        int payload_length = buffer.getInt(start + 22);
+
+        if(payload_length < 0 || payload_length > buffer.remaining() - HEADER_SIZE)
+            return null;
+
+        ByteBuffer payload = buffer.slice(start + HEADER_SIZE, payload_length);
+        buffer.position(start + HEADER_SIZE + payload_length);
+
+        return new Frame(opcode, request_id, sender_id, payload, source);
+    }
+
+    // Copy of the frame whose payload lives on the heap, for frames kept past their handler.
+    public Frame Detach()
+    {
+        if(m_source == null)
+            return this;
+
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload.duplicate().rewind());
+        copy.flip();
+
+        return new Frame(opcode, request_id, sender_id, copy, null);
+    }
+
+    public void Release()
+    {
+        if(m_source != null)
+            m_source.Release();
+    }
+
+    public static long PeekRequestId(byte[] frame)
+    {
+        return ByteBuffer.wrap(frame).getLong(6);
+    }
+
+    public final byte opcode;
+    public final long request_id;
+    public final long sender_id;
+    public final ByteBuffer payload;
+    private final Datagram m_source;
+
+    public static final int MAGIC_VALUE = 0xF00DB33F;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 26;
+}
@@ -0,0 +1,73 @@
+package core.peer;
+
+/*
+ * Count-min sketch of recent key frequencies, used by DataStore to decide whether a new item is
+ * worth more than the one it would evict. Four rows of small saturating counters; every counter
+ * is halved once the number of recorded accesses reaches the sample size, so the estimate
+ * follows what is popular now rather than what was popular once.
+ */
+class FrequencySketch
+{
+    FrequencySketch(int expected_entries)
+    {
+        int width = Integer.highestOneBit(Math.max(16, expected_entries) - 1) << 1;
+
+        this.m_table = new byte[DEPTH][width];
+        this.m_mask = width - 1;
+        this.m_sample_size = 10 * width;
+    }
+
+    void Increment(NodeId key)
+    {
+        long hash = Spread(key.hashCode());
+
+        for(int i = 0; i < DEPTH; i++)
+        {
+            int index = Index(hash, i);
+            if(m_table[i][index] < MAX_COUNT)
+                m_table[i][index]++;
+        }
+
+        if(++m_additions >= m_sample_size)
+            Reset();
+    }
+
+    int Frequency(NodeId key)
+    {
+        long hash = Spread(key.hashCode());
+        int frequency = MAX_COUNT;
+
+        for(int i = 0; i < DEPTH; i++)
+            frequency = Math.min(frequency, m_table[i][Index(hash, i)]);
+        return frequency;
+    }
+
+    private void Reset()
+    {
+        for(var row : m_table)
+        {
+            for(int i = 0; i < row.length; i++)
+                row[i] >>= 1;
+        }
+        m_additions /= 2;
+    }
+
+    private int Index(long hash, int row)
+    {
+        return (int) ((hash >>> (row * 16)) ^ (hash >>> 40) * (row + 1)) & m_mask;
+    }
+
+    private static long Spread(int hash)
+    {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    private final byte[][] m_table;
+    private final int m_mask;
+    private final int m_sample_size;
+    private int m_additions;
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+}
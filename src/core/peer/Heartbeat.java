@@ -2,8 +2,8 @@ package core.peer;
 
 import core.Lib;
 
-import java.io.IOException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 
 class Heartbeat extends Runner
 {
@@ -24,58 +24,80 @@ class Heartbeat extends Runner
             {
                 Toggle();
                 ExploreCloseNeighbours();
-                PingAllRoutingTable();
-                ShareAllDataItemsToNeighbours();
+                ProbeQuietNeighbours();
+                ReconcileDataItemsWithNeighbours();
+                DeliverHints();
                 Thread.sleep((long) (m_interval * 1e3));
-                RemoveUnRespondedNeighbours();
+                RemoveSuspectedNeighbours();
             }
-            catch (InterruptedException | IOException e)
+            catch (InterruptedException e)
             {
                 throw new RuntimeException(e);
             }
         }
     }
 
-    private void ExploreCloseNeighbours() throws InterruptedException
+    private void ExploreCloseNeighbours()
     {
-        m_peer.SendFindNode(m_peer.m_id);
+        m_peer.LookupNode(m_peer.m_id);
     }
 
-    private void ShareAllDataItemsToNeighbours() throws InterruptedException, IOException
+    // Sends neighbours only the items their digests show they lack, rather than every item.
+    private void ReconcileDataItemsWithNeighbours() throws InterruptedException
     {
-        for(var data : m_peer.m_data_table.entrySet())
-        {
-            Peer.RoutingTableEntry[] close_peers_to_key = m_peer.GetClosePeers(data.getKey(), m_peer.m_m_bits);
-            for(var peer : close_peers_to_key)
-            {
-                m_peer.SendDataItem(peer.ip_address, peer.port, data.getValue());
-            }
-        }
+        m_peer.m_anti_entropy.Round();
+    }
+
+    private void DeliverHints() throws InterruptedException
+    {
+        m_peer.m_hints.Deliver();
     }
 
-    private void PingAllRoutingTable() throws InterruptedException
+    // Pings only the peers not heard from lately, each at a random point of the round so the pings
+    // of a round, and of nodes started together, spread out instead of leaving in one burst.
+    private void ProbeQuietNeighbours()
     {
-        for(var bucket : this.m_peer.m_routing_table.entrySet())
+        long round_ms = (long) (m_interval * 1e3);
+
+        for(var bucket : this.m_peer.m_routing_table)
         {
-            for(var peer : bucket.getValue().entrySet())
+            for(var peer : bucket.Entries())
             {
-                m_peer.SetPingStateForPeer(peer.getKey(), false);
-                m_peer.SendPing(peer.getValue().ip_address, peer.getValue().port);
+                if(!m_peer.m_detector.IsQuiet(peer.id))
+                {
+                    m_peer.m_detector.OnProbe(false);
+                    continue;
+                }
+
+                m_peer.m_timers.Schedule(ThreadLocalRandom.current().nextLong(round_ms), () ->
+                {
+                    try
+                    {
+                        m_peer.ProbePeer(peer);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                });
             }
         }
     }
 
-    private void RemoveUnRespondedNeighbours()
+    // Evicts the peers whose silence the failure detector no longer finds plausible.
+    private void RemoveSuspectedNeighbours()
     {
-        try
+        for(var bucket : this.m_peer.m_routing_table)
         {
-            for (var peer : m_peer.m_ping_vector.entrySet()) {
-                if (!(m_peer.GetPingStateForPeer(peer.getKey()))) {
-                    m_peer.RemovePeerFromRoutingTable(peer.getKey());
-                } else m_peer.SetPingStateForPeer(peer.getKey(), false);
+            for(var peer : bucket.Entries())
+            {
+                if(m_peer.m_detector.IsSuspected(peer.id))
+                {
+                    m_peer.RemovePeerFromRoutingTable(peer.id);
+                    m_peer.m_detector.OnEvicted();
+                }
             }
         }
-        catch (Exception e) {}
     }
 
     public void AddSendItem(Lib.Pair<String, Integer> p, byte[] s) throws InterruptedException
@@ -0,0 +1,147 @@
+package core.peer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Writes that could not reach one of the replicas of their key. The writer keeps a hint naming
+ * the replica and the item, and offers it again every heartbeat until the replica acknowledges
+ * it, so a replica that was briefly unreachable catches up as soon as it answers again. A newer
+ * write of the same key replaces the hint for it. Hints older than MAX_AGE_MS are dropped, as
+ * are new ones past MAX_HINTS; anti-entropy still repairs those replicas, only more slowly.
+ */
+class HintedHandoff
+{
+    private static class Hint
+    {
+        Hint(Peer.RoutingTableEntry peer, NodeId key, Peer.DataItem item)
+        {
+            this.peer = peer;
+            this.key = key;
+            this.item = item;
+            this.created_ms = System.currentTimeMillis();
+        }
+
+        final Peer.RoutingTableEntry peer;
+        final NodeId key;
+        final Peer.DataItem item;
+        final long created_ms;
+        boolean in_flight;
+    }
+
+    HintedHandoff(Peer peer)
+    {
+        this.m_peer = peer;
+        this.m_hints = new HashMap<>();
+        this.m_delivered = new AtomicLong(0);
+        this.m_expired = new AtomicLong(0);
+        this.m_dropped = new AtomicLong(0);
+    }
+
+    synchronized void Add(Peer.RoutingTableEntry peer, NodeId key, Peer.DataItem item)
+    {
+        Map<NodeId, Hint> hints = m_hints.computeIfAbsent(peer.id, k -> new HashMap<>());
+        Hint existing = hints.get(key);
+
+        if(existing != null && existing.item.version >= item.version)
+            return;
+
+        if(existing == null && m_count >= MAX_HINTS)
+        {
+            m_dropped.incrementAndGet();
+            return;
+        }
+
+        if(existing == null)
+            m_count++;
+        hints.put(key, new Hint(peer, key, item));
+    }
+
+    // Offers every pending hint to its replica once more.
+    void Deliver() throws InterruptedException
+    {
+        List<Hint> to_deliver = new ArrayList<>();
+        long oldest = System.currentTimeMillis() - MAX_AGE_MS;
+
+        synchronized (this)
+        {
+            for(var peer_hints = m_hints.values().iterator(); peer_hints.hasNext();)
+            {
+                Map<NodeId, Hint> hints = peer_hints.next();
+
+                for(Iterator<Hint> it = hints.values().iterator(); it.hasNext();)
+                {
+                    Hint hint = it.next();
+
+                    if(hint.created_ms < oldest)
+                    {
+                        it.remove();
+                        m_count--;
+                        m_expired.incrementAndGet();
+                    }
+                    else if(!hint.in_flight)
+                    {
+                        hint.in_flight = true;
+                        to_deliver.add(hint);
+                    }
+                }
+
+                if(hints.isEmpty())
+                    peer_hints.remove();
+            }
+        }
+
+        for(var hint : to_deliver)
+            m_peer.SendStore(hint.peer, hint.item).whenComplete((frame, error) -> OnDelivery(hint, error == null));
+    }
+
+    synchronized int Pending()
+    {
+        return m_count;
+    }
+
+    void PrintStats()
+    {
+        System.out.println("Hinted Handoff\n----------------");
+        System.out.format("%-25s [%d]\n", "Pending Hints:", Pending());
+        System.out.format("%-25s [%d]\n", "Hints Delivered:", m_delivered.get());
+        System.out.format("%-25s [%d]\n", "Hints Expired:", m_expired.get());
+        System.out.format("%-25s [%d]\n", "Hints Dropped:", m_dropped.get());
+        System.out.println("----------------");
+    }
+
+    private synchronized void OnDelivery(Hint hint, boolean acknowledged)
+    {
+        hint.in_flight = false;
+
+        if(!acknowledged)
+            return;
+
+        Map<NodeId, Hint> hints = m_hints.get(hint.peer.id);
+
+        // A newer hint for the key may have replaced this one meanwhile; it stays pending.
+        if(hints == null || hints.get(hint.key) != hint)
+            return;
+
+        hints.remove(hint.key);
+        if(hints.isEmpty())
+            m_hints.remove(hint.peer.id);
+
+        m_count--;
+        m_delivered.incrementAndGet();
+    }
+
+    private final Peer m_peer;
+    private final HashMap<NodeId, Map<NodeId, Hint>> m_hints;
+    private final AtomicLong m_delivered;
+    private final AtomicLong m_expired;
+    private final AtomicLong m_dropped;
+    private int m_count;
+
+    private static final int MAX_HINTS = 4096;
+    private static final long MAX_AGE_MS = 60 * 60 * 1000;
+}
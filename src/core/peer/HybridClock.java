@@ -0,0 +1,95 @@
+package core.peer;
+
+/*
+ * Hybrid logical clock (Kulkarni et al.) giving data item versions that compare across nodes.
+ * A version follows the wall clock in milliseconds but never runs backwards, and it moves past
+ * every version received, so a write always outranks whatever the writer had seen before it.
+ * The low bits carry the writer's node id, so concurrent writes on two nodes never tie.
+ *
+ * Version: [physical ms 48 bits][counter 8 bits][node 8 bits]
+ */
+public class HybridClock
+{
+    public HybridClock(long node)
+    {
+        this.m_node = node & NODE_MASK;
+    }
+
+    // Version for a write made now.
+    public synchronized long Now()
+    {
+        long physical = System.currentTimeMillis();
+
+        if(physical > m_physical)
+        {
+            m_physical = physical;
+            m_counter = 0;
+        }
+        else Tick();
+        return Pack();
+    }
+
+    // Moves the clock past a version received from another node. Versions further ahead of the
+    // wall clock than MAX_DRIFT_MS are not followed, so one bad clock cannot drag the rest along.
+    public synchronized void Update(long version)
+    {
+        long physical = System.currentTimeMillis();
+        long remote_physical = PhysicalOf(version);
+        long remote_counter = (version >>> NODE_BITS) & COUNTER_MASK;
+
+        if(remote_physical - physical > MAX_DRIFT_MS)
+            return;
+
+        long latest = Math.max(physical, Math.max(m_physical, remote_physical));
+
+        if(latest == m_physical && latest == remote_physical)
+            m_counter = Math.max(m_counter, remote_counter);
+        else if(latest == remote_physical)
+            m_counter = remote_counter;
+        else if(latest != m_physical)
+            m_counter = -1;
+
+        m_physical = latest;
+        Tick();
+    }
+
+    public long Node()
+    {
+        return m_node;
+    }
+
+    // Node that stamped the version.
+    public static long NodeOf(long version)
+    {
+        return version & NODE_MASK;
+    }
+
+    public static long PhysicalOf(long version)
+    {
+        return version >>> (COUNTER_BITS + NODE_BITS);
+    }
+
+    private void Tick()
+    {
+        if(++m_counter > COUNTER_MASK)
+        {
+            m_physical++;
+            m_counter = 0;
+        }
+    }
+
+    private long Pack()
+    {
+        return (m_physical << (COUNTER_BITS + NODE_BITS)) | (m_counter << NODE_BITS) | m_node;
+    }
+
+    private final long m_node;
+    private long m_physical;
+    private long m_counter;
+
+    private static final int COUNTER_BITS = 8;
+    private static final int NODE_BITS = 8;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    private static final long NODE_MASK = (1L << NODE_BITS) - 1;
+    private static final long MAX_DRIFT_MS = 60_000;
+}
@@ -0,0 +1,129 @@
+package core.peer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * One k-bucket of the routing table. Holds at most k entries ordered from least to most recently
+ * seen, plus a bounded cache of peers that arrived while the bucket was full. The table only
+ * drops an entry after it fails to answer a ping, at which point the most recently seen cached
+ * peer takes its place.
+ */
+public class KBucket
+{
+    public KBucket(int capacity, int cache_capacity)
+    {
+        this.m_capacity = capacity;
+        this.m_cache_capacity = cache_capacity;
+        this.m_entries = new LinkedHashMap<>(capacity * 2);
+        this.m_replacements = new LinkedHashMap<>(cache_capacity * 2);
+    }
+
+    // Marks the peer as most recently seen. Returns false when the bucket is full and the peer
+    // was put into the replacement cache instead.
+    public synchronized boolean Touch(Peer.RoutingTableEntry entry)
+    {
+        entry.last_seen_ms = System.currentTimeMillis();
+
+        if(m_entries.remove(entry.id) != null || m_entries.size() < m_capacity)
+        {
+            m_entries.put(entry.id, entry);
+            m_replacements.remove(entry.id);
+            return true;
+        }
+
+        m_replacements.remove(entry.id);
+        m_replacements.put(entry.id, entry);
+
+        if(m_replacements.size() > m_cache_capacity)
+        {
+            Iterator<NodeId> oldest = m_replacements.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        return false;
+    }
+
+    // Adds an entry reloaded from a snapshot, keeping its last seen time. Entries must be given
+    // from least to most recently seen; returns false once the bucket is full.
+    public synchronized boolean Restore(Peer.RoutingTableEntry entry)
+    {
+        if(m_entries.size() == m_capacity || m_entries.containsKey(entry.id))
+            return false;
+
+        m_entries.put(entry.id, entry);
+        return true;
+    }
+
+    // Removes the peer and promotes the most recently seen replacement, which is returned.
+    public synchronized Peer.RoutingTableEntry Remove(NodeId id)
+    {
+        m_replacements.remove(id);
+
+        if(m_entries.remove(id) == null || m_replacements.isEmpty())
+            return null;
+
+        Peer.RoutingTableEntry promoted = null;
+        for(var entry : m_replacements.values())
+            promoted = entry;
+
+        m_replacements.remove(promoted.id);
+        m_entries.put(promoted.id, promoted);
+        return promoted;
+    }
+
+    // Returns the least recently seen entry if no probe of this bucket is outstanding.
+    public synchronized Peer.RoutingTableEntry BeginProbe()
+    {
+        if(m_probing || m_entries.isEmpty())
+            return null;
+
+        m_probing = true;
+        return m_entries.values().iterator().next();
+    }
+
+    public synchronized void EndProbe()
+    {
+        m_probing = false;
+    }
+
+    public synchronized Peer.RoutingTableEntry Get(NodeId id)
+    {
+        return m_entries.get(id);
+    }
+
+    public synchronized boolean Contains(NodeId id)
+    {
+        return m_entries.containsKey(id);
+    }
+
+    public synchronized Peer.RoutingTableEntry Newest()
+    {
+        Peer.RoutingTableEntry newest = null;
+        for(var entry : m_entries.values())
+            newest = entry;
+        return newest;
+    }
+
+    // Snapshot ordered from least to most recently seen.
+    public synchronized Peer.RoutingTableEntry[] Entries()
+    {
+        return m_entries.values().toArray(new Peer.RoutingTableEntry[0]);
+    }
+
+    public synchronized int Size()
+    {
+        return m_entries.size();
+    }
+
+    public synchronized int CacheSize()
+    {
+        return m_replacements.size();
+    }
+
+    private final int m_capacity;
+    private final int m_cache_capacity;
+    private final LinkedHashMap<NodeId, Peer.RoutingTableEntry> m_entries;
+    private final LinkedHashMap<NodeId, Peer.RoutingTableEntry> m_replacements;
+    private boolean m_probing;
+}
@@ -0,0 +1,243 @@
+package core.peer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * Iterative Kademlia lookup. Keeps a shortlist of candidates ordered by XOR distance to the
+ * target and queries the closest unqueried ones, at most alpha at a time. Each response feeds
+ * new candidates into the shortlist; a peer is queried at most once per lookup. The lookup
+ * finishes once the k closest candidates that have not failed have all answered, so the number
+ * of queries is bounded by the shape of the key space rather than the size of the network.
+ * A FIND_VALUE lookup instead stops at the first response carrying the value and cancels the
+ * queries still in flight.
+ */
+public class Lookup
+{
+    public static class Result
+    {
+        Result(NodeId target, Peer.RoutingTableEntry[] closest, Peer.RoutingTableEntry[] missed, Peer.DataItem value, Peer.RoutingTableEntry holder, int hops, int queried, long latency_ns)
+        {
+            this.target = target;
+            this.closest = closest;
+            this.missed = missed;
+            this.value = value;
+            this.holder = holder;
+            this.hops = hops;
+            this.queried = queried;
+            this.latency_ns = latency_ns;
+        }
+
+        public final NodeId target;
+        public final Peer.RoutingTableEntry[] closest;
+        public final Peer.RoutingTableEntry[] missed;   // answered a FIND_VALUE without the value, nearest first
+        public final Peer.DataItem value;
+        public final Peer.RoutingTableEntry holder;
+        public final int hops;
+        public final int queried;
+        public final long latency_ns;
+    }
+
+    private enum State { PENDING, IN_FLIGHT, RESPONDED, FAILED }
+
+    private static class Candidate
+    {
+        Candidate(Peer.RoutingTableEntry entry, int hop)
+        {
+            this.entry = entry;
+            this.hop = hop;
+            this.state = State.PENDING;
+        }
+
+        final Peer.RoutingTableEntry entry;
+        final int hop;
+        State state;
+        volatile CompletableFuture<Frame> query;
+    }
+
+    Lookup(Peer peer, byte opcode, NodeId target, int k, int alpha)
+    {
+        this.m_peer = peer;
+        this.m_opcode = opcode;
+        this.m_target = target;
+        this.m_k = k;
+        this.m_alpha = Math.max(1, alpha);
+        this.m_shortlist = new TreeSet<>((a, b) -> target.CompareDistance(a.entry.id, b.entry.id));
+        this.m_seen = new HashMap<>();
+        this.m_result = new CompletableFuture<>();
+    }
+
+    public CompletableFuture<Result> Start()
+    {
+        synchronized (this)
+        {
+            this.m_started_ns = System.nanoTime();
+
+            for(var entry : m_peer.GetClosePeers(m_target, m_k))
+                Offer(entry, 1);
+        }
+
+        Advance();
+        return m_result;
+    }
+
+    private void Advance()
+    {
+        List<Candidate> to_query = new ArrayList<>(m_alpha);
+
+        synchronized (this)
+        {
+            if(m_result.isDone())
+                return;
+
+            int in_window = 0;
+            boolean pending = false;
+
+            for(var candidate : m_shortlist)
+            {
+                if(candidate.state == State.FAILED)
+                    continue;
+                if(in_window++ == m_k)
+                    break;
+
+                if(candidate.state == State.PENDING)
+                {
+                    pending = true;
+
+                    if(m_in_flight < m_alpha)
+                    {
+                        candidate.state = State.IN_FLIGHT;
+                        m_in_flight++;
+                        m_queried++;
+                        to_query.add(candidate);
+                    }
+                }
+            }
+
+            if(!pending && m_in_flight == 0)
+            {
+                Finish();
+                return;
+            }
+        }
+
+        for(var candidate : to_query)
+            Query(candidate);
+    }
+
+    private void Query(Candidate candidate)
+    {
+        try
+        {
+            candidate.query = m_peer.SendQuery(candidate.entry, m_opcode, m_target);
+            candidate.query.whenComplete((frame, error) -> OnResponse(candidate, frame, error));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            OnResponse(candidate, null, e);
+        }
+    }
+
+    private void OnResponse(Candidate candidate, Frame frame, Throwable error)
+    {
+        synchronized (this)
+        {
+            m_in_flight--;
+
+            if(error != null || frame == null)
+                candidate.state = State.FAILED;
+            else
+            {
+                candidate.state = State.RESPONDED;
+                m_hops = Math.max(m_hops, candidate.hop);
+
+                try
+                {
+                    if(m_opcode == Opcode.FIND_VALUE_REQUEST && frame.payload.get() == Codec.VALUE_FOUND)
+                    {
+                        m_value = Codec.ReadDataItem(frame.payload);
+                        m_holder = candidate.entry;
+                    }
+                    else for(var entry : Codec.ReadEntries(frame.payload))
+                        Offer(entry, candidate.hop + 1);
+                }
+                catch (RuntimeException e)
+                {
+                    candidate.state = State.FAILED;
+                }
+
+                if(m_value != null && !m_result.isDone())
+                    Finish();
+            }
+        }
+
+        if(m_result.isDone())
+            CancelQueries();
+        else Advance();
+    }
+
+    private void CancelQueries()
+    {
+        List<CompletableFuture<Frame>> in_flight = new ArrayList<>();
+
+        synchronized (this)
+        {
+            for(var candidate : m_shortlist)
+            {
+                if(candidate.state == State.IN_FLIGHT && candidate.query != null)
+                    in_flight.add(candidate.query);
+            }
+        }
+
+        for(var query : in_flight)
+            query.cancel(false);
+    }
+
+    private void Offer(Peer.RoutingTableEntry entry, int hop)
+    {
+        if(entry.id.equals(m_peer.m_id) || m_seen.containsKey(entry.id))
+            return;
+
+        Candidate candidate = new Candidate(entry, hop);
+        m_seen.put(entry.id, candidate);
+        m_shortlist.add(candidate);
+    }
+
+    private void Finish()
+    {
+        List<Peer.RoutingTableEntry> closest = new ArrayList<>(m_k);
+        List<Peer.RoutingTableEntry> missed = new ArrayList<>();
+
+        // A lookup cut short by a value hit reports every candidate that has not failed so far,
+        // since most of them were never given the chance to answer.
+        for(var candidate : m_shortlist)
+        {
+            if(m_opcode == Opcode.FIND_VALUE_REQUEST && candidate.state == State.RESPONDED && candidate.entry != m_holder)
+                missed.add(candidate.entry);
+            if(closest.size() < m_k && (candidate.state == State.RESPONDED || (m_value != null && candidate.state != State.FAILED)))
+                closest.add(candidate.entry);
+        }
+
+        m_result.complete(new Result(m_target, closest.toArray(new Peer.RoutingTableEntry[0]), missed.toArray(new Peer.RoutingTableEntry[0]),
+                                     m_value, m_holder, m_hops, m_queried, System.nanoTime() - m_started_ns));
+    }
+
+    private final Peer m_peer;
+    private final byte m_opcode;
+    private final NodeId m_target;
+    private final int m_k;
+    private final int m_alpha;
+    private final TreeSet<Candidate> m_shortlist;
+    private final HashMap<NodeId, Candidate> m_seen;
+    private final CompletableFuture<Result> m_result;
+    private Peer.DataItem m_value;
+    private Peer.RoutingTableEntry m_holder;
+    private long m_started_ns;
+    private int m_in_flight;
+    private int m_queried;
+    private int m_hops;
+}
@@ -0,0 +1,93 @@
+package core.peer;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Value stored at the key of a large file in place of its contents. The file is cut into
+ * fixed-size chunks, each named by the SHA-256 of its bytes and held in the ChunkStore of the
+ * nodes holding the key. The chunk hashes are themselves packed into index chunks, so the
+ * manifest only lists one index hash per chunk_size / 32 data chunks and stays small enough to
+ * travel in a single STORE however large the file.
+ *
+ * [magic int][length long][chunk size int][index count int][index hash 32]...
+ */
+public class Manifest
+{
+    Manifest(long length, int chunk_size, byte[][] index)
+    {
+        this.length = length;
+        this.chunk_size = chunk_size;
+        this.index = index;
+    }
+
+    public int ChunkCount()
+    {
+        return (int) ((length + chunk_size - 1) / chunk_size);
+    }
+
+    public int ChunkLength(int chunk)
+    {
+        return (int) Math.min(chunk_size, length - (long) chunk * chunk_size);
+    }
+
+    public int HashesPerIndex()
+    {
+        return chunk_size / ChunkStore.HASH_SIZE;
+    }
+
+    public byte[] Encode()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER + index.length * ChunkStore.HASH_SIZE);
+        buffer.putInt(MAGIC_VALUE).putLong(length).putInt(chunk_size).putInt(index.length);
+
+        for(var hash : index)
+            buffer.put(hash);
+        return buffer.array();
+    }
+
+    // Returns null when the value is not a well-formed manifest.
+    public static Manifest Decode(byte[] value)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+
+        if(value.length < HEADER || buffer.getInt() != MAGIC_VALUE)
+            return null;
+
+        long length = buffer.getLong();
+        int chunk_size = buffer.getInt();
+        int count = buffer.getInt();
+
+        if(length < 0 || chunk_size < ChunkStore.HASH_SIZE)
+            return null;
+
+        // Bounded in long before anything is allocated, as the count comes off the network.
+        long chunks = length / chunk_size + ((length % chunk_size == 0) ? 0 : 1);
+        long per_index = chunk_size / ChunkStore.HASH_SIZE;
+
+        if(chunks > Integer.MAX_VALUE || count < 0 || count > length / chunk_size + 1 || buffer.remaining() != (long) count * ChunkStore.HASH_SIZE)
+            return null;
+        if(count != (chunks + per_index - 1) / per_index)
+            return null;
+
+        byte[][] index = new byte[count][ChunkStore.HASH_SIZE];
+        for(var hash : index)
+            buffer.get(hash);
+        return new Manifest(length, chunk_size, index);
+    }
+
+    // Splits an index chunk back into the data chunk hashes it lists.
+    static byte[][] ReadHashes(ByteBuffer index_chunk)
+    {
+        byte[][] hashes = new byte[index_chunk.remaining() / ChunkStore.HASH_SIZE][ChunkStore.HASH_SIZE];
+        for(var hash : hashes)
+            index_chunk.get(hash);
+        return hashes;
+    }
+
+    public final long length;
+    public final int chunk_size;
+    public final byte[][] index;
+
+    private static final int MAGIC_VALUE = 0x4D414E31;
+    private static final int HEADER = Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+}
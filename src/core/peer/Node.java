@@ -2,59 +2,69 @@ package core.peer;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 
-public class Node
+/*
+ * UDP endpoint of a peer. Binds to DEFAULT_PORT when it is free, otherwise to the requested
+ * port or a random one. SocketNode implements it over a DatagramSocket and ChannelNode over a
+ * DatagramChannel with pooled direct buffers.
+ */
+public abstract class Node
 {
-    public Node(int port) throws IOException
+    public static Node Create(int port, boolean nio) throws IOException
     {
-        try {
-            this.m_socket = new DatagramSocket(DEFAULT_PORT);
-        } catch (SocketException se) {
+        Node node = nio ? new ChannelNode() : new SocketNode();
+        node.Bind(port);
+        return node;
+    }
 
-            if(port != DEFAULT_PORT)
-                this.m_socket = new DatagramSocket(port);
-            else this.m_socket = new DatagramSocket(RANDOM_PORT);
-        }
+    // Waits up to RECEIVE_TIMEOUT for a datagram; returns null when none arrived.
+    public abstract Datagram ReceivePacket() throws IOException;
 
-        this.m_ip_address = InetAddress.getLocalHost().getHostAddress();
-        this.m_port = m_socket.getLocalPort();
-        m_socket.setSoTimeout(1000);
-    }
+    // Sends the buffer's remaining bytes as one datagram.
+    public abstract void SendPacket(ByteBuffer input, InetSocketAddress address) throws IOException;
 
-    public DatagramPacket ReceivePacket() throws IOException
-    {
-        DatagramPacket receive = DefinePacket(MAX_RECEIVE_SIZE);
-        m_socket.receive(receive);
+    // Buffer suited to SendPacket on this transport, for callers that reuse one across sends.
+    public abstract ByteBuffer AllocateBuffer(int size);
 
-        return receive;
-    }
+    public abstract void SetBroadcast(boolean state) throws IOException;
 
-    public void SendPacket(byte[] input, String ip_address, int port) throws IOException
+    public abstract void Close();
+
+    protected abstract void Open(int port) throws IOException;
+
+    protected abstract int LocalPort();
+
+    public void SendPacket(byte[] input, InetSocketAddress address) throws IOException
     {
-        DatagramPacket packet = DefinePacket(input, ip_address, port);
-        m_socket.send(packet);
+        SendPacket(ByteBuffer.wrap(input), address);
     }
 
-    private DatagramPacket DefinePacket(int size)
+    public void SendPacket(byte[] input, String ip_address, int port) throws IOException
     {
-        assert size > 0;
-
-        byte[] bytes = new byte[size];
-        return new DatagramPacket(bytes, 0, size);
+        SendPacket(input, new InetSocketAddress(ip_address, port));
     }
 
-    private DatagramPacket DefinePacket(byte[] input, String ip_address, int port) throws UnknownHostException
+    private void Bind(int port) throws IOException
     {
-        assert input.length != 0;
+        try {
+            Open(DEFAULT_PORT);
+        } catch (SocketException se) {
 
-        InetAddress address = InetAddress.getByName(ip_address);
-        return new DatagramPacket(input, input.length, address, port);
+            if(port != DEFAULT_PORT)
+                Open(port);
+            else Open(RANDOM_PORT);
+        }
+
+        this.m_ip_address = InetAddress.getLocalHost().getHostAddress();
+        this.m_port = LocalPort();
     }
 
     public int m_port;
     public String m_ip_address;
-    public DatagramSocket m_socket;
     public final int DEFAULT_PORT = 52222;
     public final int MAX_RECEIVE_SIZE = 1<<16;
+    protected final int RECEIVE_TIMEOUT = 1000;
+    protected final int POOLED_BUFFERS = 256;
     private final int RANDOM_PORT = 0;
 }
@@ -0,0 +1,71 @@
+package core.peer;
+
+import core.Lib;
+
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Identifier of a peer or a data key within the m-bit key space (m <= 64), held as a primitive
+ * long. Distances, bucket indices and comparisons are plain bit operations and allocate nothing.
+ * Values are treated as unsigned.
+ */
+public final class NodeId implements Comparable<NodeId>
+{
+    public NodeId(long value)
+    {
+        this.m_value = value;
+    }
+
+    public static NodeId Hash(String input, int bits) throws NoSuchAlgorithmException
+    {
+        return new NodeId(Lib.SHA1(input, bits));
+    }
+
+    public long Value()
+    {
+        return m_value;
+    }
+
+    public long Distance(NodeId other)
+    {
+        return m_value ^ other.m_value;
+    }
+
+    // Index of the highest bit in which the ids differ, -1 when they are equal.
+    public int Bucket(NodeId other)
+    {
+        return 63 - Long.numberOfLeadingZeros(m_value ^ other.m_value);
+    }
+
+    // Orders a and b by their XOR distance to this id.
+    public int CompareDistance(NodeId a, NodeId b)
+    {
+        return Long.compareUnsigned(m_value ^ a.m_value, m_value ^ b.m_value);
+    }
+
+    @Override
+    public int compareTo(NodeId other)
+    {
+        return Long.compareUnsigned(m_value, other.m_value);
+    }
+
+    @Override
+    public boolean equals(Object in)
+    {
+        return (in instanceof NodeId) && ((NodeId) in).m_value == m_value;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Long.hashCode(m_value);
+    }
+
+    @Override
+    public String toString()
+    {
+        return Long.toUnsignedString(m_value);
+    }
+
+    private final long m_value;
+}
@@ -0,0 +1,58 @@
+package core.peer;
+
+public final class Opcode
+{
+    public static final byte PING                = 0;
+    public static final byte PONG                = 1;
+    public static final byte CONNECT_REQUEST     = 2;
+    public static final byte CONNECT_RESPONSE    = 3;
+    public static final byte FIND_NODE_REQUEST   = 4;
+    public static final byte FIND_NODE_RESPONSE  = 5;
+    public static final byte FIND_VALUE_REQUEST  = 6;
+    public static final byte FIND_VALUE_RESPONSE = 7;
+    public static final byte FIND_KEYS_REQUEST   = 8;
+    public static final byte FIND_KEYS_RESPONSE  = 9;
+    public static final byte STORE               = 10;
+    public static final byte EXIT                = 11;
+    public static final byte CHUNK_REQUEST       = 12;
+    public static final byte CHUNK_RESPONSE      = 13;
+    public static final byte SYNC_REQUEST        = 14;
+    public static final byte SYNC_RESPONSE       = 15;
+    public static final byte STORE_ACK           = 16;
+
+    public static final int COUNT = 17;
+
+    // Responses echo the request id of the request they answer.
+    public static boolean IsResponse(int opcode)
+    {
+        switch (opcode)
+        {
+            case PONG:
+            case CONNECT_RESPONSE:
+            case FIND_NODE_RESPONSE:
+            case FIND_VALUE_RESPONSE:
+            case FIND_KEYS_RESPONSE:
+            case CHUNK_RESPONSE:
+            case SYNC_RESPONSE:
+            case STORE_ACK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static String Name(int opcode)
+    {
+        return (opcode >= 0 && opcode < COUNT) ? NAMES[opcode] : "UNKNOWN(" + opcode + ")";
+    }
+
+    private static final String[] NAMES = {
+            "PING", "PONG", "CONNECT_REQUEST", "CONNECT_RESPONSE",
+            "FIND_NODE_REQUEST", "FIND_NODE_RESPONSE", "FIND_VALUE_REQUEST", "FIND_VALUE_RESPONSE",
+            "FIND_KEYS_REQUEST", "FIND_KEYS_RESPONSE", "STORE", "EXIT",
+            "CHUNK_REQUEST", "CHUNK_RESPONSE", "SYNC_REQUEST", "SYNC_RESPONSE",
+            "STORE_ACK"
+    };
+
+    private Opcode() {}
+}
@@ -3,28 +3,35 @@ package core.peer;
 import core.Lib;
 
 import java.io.*;
-import java.math.BigInteger;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
-import java.time.LocalDate;
+import java.time.Instant;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 public class Peer
 {
-    static public class RoutingTableEntry implements Serializable
+    static public class RoutingTableEntry
     {
         public String nick_name;
-        public BigInteger id;
+        public NodeId id;
         public int port;
         public String ip_address;
 
-        public RoutingTableEntry(String nick_name, BigInteger id, String ip_address, int port)
+        public RoutingTableEntry(String nick_name, NodeId id, String ip_address, int port)
         {
             this.nick_name = nick_name;
             this.id = id;
@@ -36,11 +43,30 @@ public class Peer
         {
             this.nick_name = "";
             this.nick_name = nick_name;
-            this.id = BigInteger.valueOf(0);
+            this.id = new NodeId(0);
             this.ip_address = ip_address;
             this.port = port;
         }
 
+        public RoutingTableEntry(InetSocketAddress address)
+        {
+            this(address.getAddress().getHostAddress(), address.getPort());
+            this.m_address = address;
+        }
+
+        // Resolved once per entry and reused for every send to it.
+        public InetSocketAddress GetAddress()
+        {
+            InetSocketAddress address = m_address;
+
+            if(address == null)
+            {
+                address = new InetSocketAddress(ip_address, port);
+                m_address = address;
+            }
+            return address;
+        }
+
         @Override
         public boolean equals(Object in)
         {
@@ -53,48 +79,151 @@ public class Peer
                    this.port == e.port &&
                    this.ip_address.equals(e.ip_address);
         }
+
+        public volatile long last_seen_ms;
+        private volatile InetSocketAddress m_address;
     }
 
-    static public class DataItem<T> implements Serializable
+    static public class DataItem
     {
         public boolean is_file;
-        public T value;
+        public boolean is_manifest;
+        public boolean is_cached;
         public String key;
-        public long unix_timestamp;
+        public long version;
+        public volatile long expiry_ms;
+        public volatile long refreshed_ms;
 
-        DataItem(String k, T v, boolean is_file)
+        DataItem(String k, byte[] v, boolean is_file)
         {
             this.is_file = is_file;
             this.key = k;
-            this.value = v;
-            this.unix_timestamp = System.nanoTime();
+            this.m_value = v;
+            this.m_length = v.length;
+            this.expiry_ms = 0;
+        }
+
+        // Heap copy of the value; the stored bytes are copied out when they live off-heap.
+        public synchronized byte[] Value()
+        {
+            if(m_off_heap == null)
+                return m_value;
+
+            byte[] value = new byte[m_length];
+            m_off_heap.get(0, value);
+            return value;
+        }
+
+        public int ValueLength()
+        {
+            return m_length;
+        }
+
+        synchronized void WriteValue(ByteBuffer buffer)
+        {
+            if(m_off_heap == null)
+                buffer.put(m_value);
+            else buffer.put(m_off_heap.duplicate());
+        }
+
+        // Moves the value into the arena, sharing the chunk of an identical value already there,
+        // or leaves it on the heap if the arena cannot take it.
+        synchronized void MoveOffHeap(ValueArena arena)
+        {
+            if(m_off_heap != null)
+                return;
+
+            ByteBuffer chunk = arena.Intern(m_value);
+
+            if(chunk != null)
+            {
+                this.m_off_heap = chunk;
+                this.m_value = null;
+            }
+        }
+
+        // Brings the value back to the heap and returns its chunk, for items leaving the store
+        // that may still be referenced elsewhere.
+        synchronized void Detach(ValueArena arena)
+        {
+            if(m_off_heap == null)
+                return;
+
+            this.m_value = Value();
+            arena.Release(m_off_heap);
+            this.m_off_heap = null;
+        }
+
+        // Bytes of the chunks a stored manifest names. Cached copies never fetch their chunks.
+        synchronized long ChunkedLength()
+        {
+            if(!is_manifest || is_cached)
+                return 0;
+
+            if(m_chunked_length < 0)
+            {
+                Manifest manifest = Manifest.Decode(Value());
+                m_chunked_length = (manifest == null) ? 0 : manifest.length;
+            }
+            return m_chunked_length;
+        }
+
+        // Copies cached away from the nodes responsible for the key, rather than stored there.
+        public boolean IsCached()
+        {
+            return is_cached;
+        }
+
+        // Remaining lifetime as sent on the wire, 0 for items that never expire.
+        long TimeToLive()
+        {
+            return (expiry_ms == 0) ? 0 : Math.max(1, expiry_ms - System.currentTimeMillis());
         }
+
+        void SetTimeToLive(long ttl_ms)
+        {
+            expiry_ms = (ttl_ms == 0) ? 0 : System.currentTimeMillis() + ttl_ms;
+        }
+
+        private final int m_length;
+        private long m_chunked_length = -1;
+        private byte[] m_value;
+        private ByteBuffer m_off_heap;
     }
 
-    public Peer(String nickname, int port) throws IOException, NoSuchAlgorithmException
+    public Peer(String nickname, int port, boolean nio) throws IOException, NoSuchAlgorithmException
     {
-        DefineUDPSocket(port);
+        DefineUDPSocket(port, nio);
         Initialise(nickname);
     }
 
-    private void Initialise(String nickname) throws NoSuchAlgorithmException
+    private void Initialise(String nickname) throws IOException, NoSuchAlgorithmException
     {
         this.m_connected = false;
         this.m_nickname = nickname;
         this.m_processing = new Semaphore(0);
-        this.m_received = new LinkedBlockingQueue<>();
+        this.m_pipeline = new RingBuffer(PIPELINE_CAPACITY, m_wait_strategy);
+        this.m_timers = new TimerWheel(TIMER_TICK_MS, TIMER_SLOTS);
+        this.m_disk = Executors.newSingleThreadExecutor(Peer::NewDiskWriter);
+        this.m_requests = new CorrelationTable(MAX_PENDING_REQUESTS, m_timers);
         this.m_m_bits = 8;
         this.m_alpha = (int)Math.sqrt(m_m_bits);
+        this.m_k = BUCKET_CAPACITY;
 
         String hash_value = m_socket.m_ip_address + ":" + m_socket.m_port;
-        this.m_id = Lib.SHA1(hash_value, BigInteger.valueOf(1).shiftLeft(m_m_bits));
+        this.m_id = NodeId.Hash(hash_value, m_m_bits);
+        this.m_clock = new HybridClock(m_id.Value());
+        this.m_republisher = new Republisher(this, DATA_TTL_MS, REPUBLISH_INTERVAL_MS);
 
+        this.m_detector = new FailureDetector();
         DefineRoutingTable();
+        DefineChunkStore();
         DefineDataTable();
-        DefinePingVector();
+        this.m_anti_entropy = new AntiEntropy(this);
+        this.m_hints = new HintedHandoff(this);
     }
 
-    public void DefineSenderAndReceiver()
+    public void DefineSenderAndReceiver() throws InterruptedException
     {
         this.m_sender = new Sender(this, this.GetSocket());
         this.m_receiver = new Receiver(this);
@@ -103,65 +232,62 @@ public class Peer
         new Thread(this.m_sender).start();
         new Thread(this.m_receiver).start();
         new Thread(this.m_heartbeat).start();
+
+        ValidateRestoredPeers();
     }
 
-    public void Store(RoutingTableEntry peer_info, byte[] message) throws NoSuchAlgorithmException, InterruptedException, IOException, ClassNotFoundException
+    public void Store(RoutingTableEntry peer_info, Frame frame) throws NoSuchAlgorithmException, InterruptedException
     {
-        String[] message_string_tokens = new String(message, StandardCharsets.UTF_8).replace("\0", "").split(" ");
-        assert message_string_tokens.length == 2;
+        DataItem data_item = Codec.ReadDataItem(frame.payload);
+        NodeId key_hash = NodeId.Hash(data_item.key, m_m_bits);
+        m_clock.Update(data_item.version);
 
-        ByteArrayInputStream in = new ByteArrayInputStream(Arrays.copyOfRange(message, message_string_tokens[0].length() + 1, message.length));
-        ObjectInputStream iis = new ObjectInputStream(in);
-        DataItem<?> data_item = (DataItem<?>) iis.readObject();
+        if(MergeDataItem(key_hash, data_item, !data_item.IsCached() && IsResponsibleFor(key_hash)) && data_item.is_manifest && !data_item.IsCached())
+            ReplicateChunks(key_hash, data_item, peer_info);
 
-        if(data_item.value.equals(""))
-        {
-            BigInteger key_hash = Lib.SHA1(data_item.key, BigInteger.valueOf(1).shiftLeft(m_m_bits));
-            BigInteger command_count = new BigInteger(message_string_tokens[0].split(":")[1]);
+        DataItem held = m_data_table.Peek(key_hash);
+        Send(peer_info, BindStoreAck(frame.request_id, (held == null) ? 0 : held.version), false);
+    }
 
-            if(m_data_table.containsKey(key_hash))
-            {
-                byte[] to_send = BindCommand(("STORE" + ":" + command_count + " "), this.m_data_table.get(key_hash));
+    // The acknowledgement is taken by the write or hint that sent the item.
+    public void StoreAck(RoutingTableEntry peer_info, Frame frame) {}
 
-                Send(peer_info.ip_address, peer_info.port, to_send, false);
-            }
-        }
-        else
-        {
-            BigInteger key_hash = Lib.SHA1(data_item.key, BigInteger.valueOf(1).shiftLeft(m_m_bits));
+    public void ChunkRequest(RoutingTableEntry peer_info, Frame frame) throws InterruptedException
+    {
+        byte[] hash = new byte[ChunkStore.HASH_SIZE];
+        frame.payload.get(hash);
+        int offset = frame.payload.getInt();
+        int length = Math.min(frame.payload.getInt(), ChunkTransfer.PIECE_SIZE);
 
-            if(!m_data_table.containsKey(key_hash))
-            {
-                m_data_table.put(key_hash, data_item);
-                m_data_keys.put(key_hash, data_item.key);
-            }
-        }
+        Send(peer_info, BindChunkResponse(frame.request_id, m_chunk_store.Read(hash, offset, length)), false);
     }
 
-    public void Ping(RoutingTableEntry peer_info, byte[] message) throws InterruptedException
+    // The piece is taken by the ChunkTransfer that sent the request.
+    public void ChunkResponse(RoutingTableEntry peer_info, Frame frame) {}
+
+    public void SyncRequest(RoutingTableEntry peer_info, Frame frame) throws InterruptedException
     {
-        String[] message_string_tokens = new String(message, StandardCharsets.UTF_8).replace("\0", "").split(" ");
-        assert message_string_tokens.length == 2;
+        Send(peer_info, BindSyncResponse(frame.request_id, m_anti_entropy.Answer(new NodeId(frame.sender_id), frame.payload)), false);
+    }
 
-        String[] ping_tokens = message_string_tokens[1].split(",");
-        String nick_name = ping_tokens[0];
-        BigInteger id = new BigInteger(ping_tokens[1]);
+    // The keys are taken by the AntiEntropy round that sent the request.
+    public void SyncResponse(RoutingTableEntry peer_info, Frame frame) {}
+
+    public void Ping(RoutingTableEntry peer_info, Frame frame) throws InterruptedException
+    {
+        String nick_name = Codec.ReadString(frame.payload);
+        NodeId id = new NodeId(frame.sender_id);
 
         InsertPeerIntoRoutingTable(nick_name, id, peer_info.ip_address, peer_info.port);
-        SendPong(peer_info.ip_address, peer_info.port);
+        SendPong(peer_info, frame.request_id);
     }
 
-    public void Pong(RoutingTableEntry peer_info, byte[] message)
+    public void Pong(RoutingTableEntry peer_info, Frame frame) throws InterruptedException
     {
-        String[] message_string_tokens = new String(message, StandardCharsets.UTF_8).replaceAll("\0", "").split(" ");
-        assert message_string_tokens.length == 2;
-
-        String[] ping_tokens = message_string_tokens[1].split(",");
-        String nick_name = ping_tokens[0];
-        BigInteger id = new BigInteger(ping_tokens[1]);
+        String nick_name = Codec.ReadString(frame.payload);
+        NodeId id = new NodeId(frame.sender_id);
 
         InsertPeerIntoRoutingTable(nick_name, id, peer_info.ip_address, peer_info.port);
-        SetPingStateForPeer(id, true);
 
         if(!m_connected && !Objects.equals(id, m_id))
         {
@@ -171,259 +297,414 @@ public class Peer
         }
     }
 
-    public void FindKeysRequest(RoutingTableEntry peer_info, byte[] message) throws IOException, InterruptedException
+    public void FindKeysRequest(RoutingTableEntry peer_info, Frame frame) throws InterruptedException
     {
-        String[] message_string_tokens = new String(message, StandardCharsets.UTF_8).replaceAll("\0", "").split(" ");
-        assert message_string_tokens.length == 1;
+        var data_items = m_data_table.Snapshot().values();
+        String[] keys = new String[data_items.size()];
 
-        BigInteger command_count = new BigInteger(message_string_tokens[0].split(":")[1]);
+        int i = 0;
+        for(var data : data_items)
+            keys[i++] = data.key;
 
-        StringBuilder keys = new StringBuilder();
+        Send(peer_info, BindCommand(Opcode.FIND_KEYS_RESPONSE, frame.request_id, keys), false);
+    }
 
-        var data = m_data_table.firstEntry();
-        for(int i = 0; i < m_data_table.size(); i++)
+    public void FindKeysResponse(RoutingTableEntry peer_info, Frame frame) throws NoSuchAlgorithmException
+    {
+        String[] keys = Codec.ReadStrings(frame.payload);
+
+        for(var key : keys)
         {
-            keys.append(data.getValue().key);
-            data = m_data_table.higherEntry(data.getKey());
+            NodeId hash = NodeId.Hash(key, m_m_bits);
 
-            if(i != m_data_table.size() - 1)
-                keys.append(",");
+            m_data_keys.put(hash, key);
         }
+    }
+
+    public void FindNodeRequest(RoutingTableEntry peer_info, Frame frame) throws InterruptedException
+    {
+        NodeId peer_id = new NodeId(frame.payload.getLong());
+
+        RoutingTableEntry[] close_peers = GetClosePeers(peer_id, m_k);
+
+        byte[] to_send = BindCommand(Opcode.FIND_NODE_RESPONSE, frame.request_id, close_peers);
 
-        Send(peer_info.ip_address, peer_info.port, ("FIND_KEYS_RESPONSE" + ":" + command_count + " " + keys).getBytes(), false);
+        Send(peer_info, to_send, false);
     }
 
-    public void FindKeysResponse(RoutingTableEntry peer_info, byte[] message) throws NoSuchAlgorithmException
+    // The peers listed in the response are followed up by the Lookup that sent the request.
+    public void FindNodeResponse(RoutingTableEntry peer_info, Frame frame) throws InterruptedException
     {
-        String[] message_string_tokens = new String(message, StandardCharsets.UTF_8).replaceAll("\0", "").split(" ");
-        assert message_string_tokens.length == 2;
+        NodeId id = new NodeId(frame.sender_id);
 
-        if(message_string_tokens.length == 2)
-        {
-            String[] keys = message_string_tokens[1].split(",");
+        if(!m_routing_table[DetermineBucket(id)].Contains(id))
+            SendPing(peer_info);
+    }
 
-            for(var key : keys)
-            {
-                BigInteger hash = Lib.SHA1(key, BigInteger.valueOf(1).shiftLeft(m_m_bits));
+    public void ConnectRequest(RoutingTableEntry peer_info, Frame frame) throws InterruptedException
+    {
+        NodeId peer_id = new NodeId(frame.payload.getLong());
+
+        RoutingTableEntry[] close_peers = GetClosePeers(peer_id, m_k);
 
-                m_data_keys.put(hash, key);
+        byte[] to_send = BindCommand(Opcode.CONNECT_RESPONSE, frame.request_id, close_peers);
+
+        Send(peer_info, to_send, false);
+    }
+
+    public void ConnectResponse(RoutingTableEntry peer_info, Frame frame) throws InterruptedException
+    {
+        if(!m_connected)
+        {
+            SendPing(peer_info);
+            RoutingTableEntry[] peers = Codec.ReadEntries(frame.payload);
+
+            for (var peer : peers) {
+                if (!Objects.equals(peer.id, m_id))
+                    SendPing(peer);
             }
+            LookupNode(m_id);
         }
     }
 
-    public void FindNodeRequest(RoutingTableEntry peer_info, byte[] message) throws IOException, InterruptedException
+    public void FindValueRequest(RoutingTableEntry peer_info, Frame frame) throws InterruptedException
     {
-        String[] message_string_tokens = new String(message, StandardCharsets.UTF_8).replaceAll("\0", "").split(" ");
-        assert message_string_tokens.length == 2;
+        NodeId key_id = new NodeId(frame.payload.getLong());
+        DataItem data_item = m_data_table.Get(key_id);
 
-        BigInteger command_count = new BigInteger(message_string_tokens[0].split(":")[1]);
-        BigInteger peer_id = new BigInteger(message_string_tokens[1]);
+        byte[] to_send = (data_item != null) ? BindValueResponse(frame.request_id, data_item)
+                                             : BindValueResponse(frame.request_id, GetClosePeers(key_id, m_k));
 
-        RoutingTableEntry[] close_peers = GetClosePeers(peer_id, m_m_bits);
+        Send(peer_info, to_send, false);
+    }
 
-        byte[] to_send = BindCommand(("FIND_NODE_RESPONSE" + ":" + command_count + " "), close_peers);
+    // The peers listed in the response are followed up by the Lookup that sent the request.
+    public void FindValueResponse(RoutingTableEntry peer_info, Frame frame) throws InterruptedException
+    {
+        NodeId id = new NodeId(frame.sender_id);
 
-        Send(peer_info.ip_address, peer_info.port, to_send, false);
+        if(!m_routing_table[DetermineBucket(id)].Contains(id))
+            SendPing(peer_info);
     }
 
-    public void FindNodeResponse(RoutingTableEntry peer_info, byte[] message) throws IOException, ClassNotFoundException, InterruptedException
+    public CompletableFuture<Frame> JoinThroughPeer(String boot_ip, int boot_port) throws InterruptedException
     {
-        String[] message_string_tokens = new String(message, StandardCharsets.UTF_8).replaceAll("\0", "").split(" ");
-        BigInteger command_count = new BigInteger(message_string_tokens[0].split(":")[1]);
+        return SendAsync(new RoutingTableEntry(boot_ip, boot_port), BindCommand(Opcode.CONNECT_REQUEST, NextRequestId(), m_id));
+    }
 
-        ByteArrayInputStream in = new ByteArrayInputStream(Arrays.copyOfRange(message, message_string_tokens[0].length() + 1, message.length));
-        ObjectInputStream iis = new ObjectInputStream(in);
+    public void JoinThroughBroadcast() throws InterruptedException
+    {
+        byte[] broadcast_join_message = BindCommand(Opcode.CONNECT_REQUEST, NextRequestId(), m_id);
+        m_sender.AddSendItem(null, broadcast_join_message);
+    }
 
-        SendPing(peer_info.ip_address, peer_info.port);
-        RoutingTableEntry[] peers = (RoutingTableEntry[]) iis.readObject();
+    public CompletableFuture<Lookup.Result> LookupNode(NodeId id)
+    {
+        return new Lookup(this, Opcode.FIND_NODE_REQUEST, id, m_k, m_alpha).Start();
+    }
 
-        for(var peer : peers)
-        {
-            BigInteger bucket = DetermineBucket(peer.id);
+    public CompletableFuture<Lookup.Result> LookupValue(NodeId id)
+    {
+        return new Lookup(this, Opcode.FIND_VALUE_REQUEST, id, m_k, m_alpha).Start();
+    }
 
-            if(!(m_routing_table.get(bucket).containsKey(peer.id)))
-            {
-                if(!Objects.equals(peer.id, m_id))
-                {
-                    SendPing(peer.ip_address, peer.port);
-                    Send(peer.ip_address, peer.port, ("FIND_NODE_REQUEST" + ":" + command_count + " " + m_id).getBytes(), true);
-                }
-            }
-        }
+    // Sends one lookup query for the target; the future completes with the response.
+    CompletableFuture<Frame> SendQuery(RoutingTableEntry peer, byte opcode, NodeId target) throws InterruptedException
+    {
+        return SendAsync(peer, BindCommand(opcode, NextRequestId(), target), LOOKUP_TIMEOUT_MS);
     }
 
-    public void ConnectRequest(RoutingTableEntry peer_info, byte[] message) throws IOException, InterruptedException
+    CompletableFuture<Frame> SendChunkRequest(RoutingTableEntry peer, byte[] hash, int offset, int length, long timeout_ms) throws InterruptedException
     {
-        String[] message_string_tokens = new String(message, StandardCharsets.UTF_8).replaceAll("\0", "").split(" ");
-        assert message_string_tokens.length == 2;
+        return SendAsync(peer, BindChunkRequest(NextRequestId(), hash, offset, length), timeout_ms);
+    }
 
-        BigInteger command_count = new BigInteger(message_string_tokens[0].split(":")[1]);
-        BigInteger peer_id = new BigInteger(message_string_tokens[1]);
+    CompletableFuture<Frame> SendSyncRequest(RoutingTableEntry peer, List<Integer> ranges, long[] digests) throws InterruptedException
+    {
+        return SendAsync(peer, BindSyncRequest(NextRequestId(), ranges, digests), LOOKUP_TIMEOUT_MS);
+    }
 
-        RoutingTableEntry[] close_peers = GetClosePeers(peer_id, m_m_bits);
+    // Sends the item; the future completes with the STORE_ACK of the peer.
+    CompletableFuture<Frame> SendStore(RoutingTableEntry peer, DataItem data_item) throws InterruptedException
+    {
+        return SendAsync(peer, BindCommand(Opcode.STORE, NextRequestId(), data_item), STORE_TIMEOUT_MS);
+    }
 
-        byte[] to_send = BindCommand(("CONNECT_RESPONSE" + ":" + command_count + " "), close_peers);
+    public void SendDataItem(RoutingTableEntry peer, DataItem data_item) throws InterruptedException
+    {
+        byte[] to_send = BindCommand(Opcode.STORE, NextRequestId(), data_item);
+        Send(peer, to_send, false);
+    }
 
-        Send(peer_info.ip_address, peer_info.port, to_send, false);
+    public void SendPing(RoutingTableEntry peer) throws InterruptedException
+    {
+        Send(peer, BindCommand(Opcode.PING, NextRequestId(), this.m_nickname), false);
     }
 
-    public void ConnectResponse(RoutingTableEntry peer_info, byte[] message) throws IOException, ClassNotFoundException, InterruptedException
+    // Pings a peer that has been quiet, timing the round trip. A peer never heard from since it was
+    // added has no history to suspect it by, so it is dropped as soon as it misses the ping.
+    public void ProbePeer(RoutingTableEntry peer) throws InterruptedException
     {
-        if(!m_connected)
+        long sent_ns = System.nanoTime();
+
+        SendAsync(peer, BindCommand(Opcode.PING, NextRequestId(), this.m_nickname), m_detector.Timeout(peer.id)).whenComplete((response, error) ->
         {
-            String[] message_string_tokens = new String(message, StandardCharsets.UTF_8).replaceAll("\0", "").split(" ");
-            BigInteger command_count = new BigInteger(message_string_tokens[0].split(":")[1]);
+            if(error == null)
+                m_detector.OnRoundTrip(peer.id, (System.nanoTime() - sent_ns) / 1e6);
+            else if(!m_detector.IsTracked(peer.id))
+                RemovePeerFromRoutingTable(peer.id);
+        });
+        m_detector.OnProbe(true);
+    }
 
-            ByteArrayInputStream in = new ByteArrayInputStream(Arrays.copyOfRange(message, message_string_tokens[0].length() + 1, message.length));
-            ObjectInputStream iis = new ObjectInputStream(in);
+    public void SendPong(RoutingTableEntry peer, long request_id) throws InterruptedException
+    {
+        Send(peer, BindCommand(Opcode.PONG, request_id, this.m_nickname), false);
+    }
 
-            SendPing(peer_info.ip_address, peer_info.port);
-            RoutingTableEntry[] peers = (RoutingTableEntry[]) iis.readObject();
+    public CompletableFuture<List<Lookup.Result>> ContactAllBuckets()
+    {
+        List<CompletableFuture<Lookup.Result>> lookups = new ArrayList<>(m_m_bits);
 
-            for (var peer : peers) {
-                BigInteger bucket = DetermineBucket(peer.id);
-
-                if (!(m_routing_table.get(bucket).containsKey(peer.id)))
-                {
-                    if (!Objects.equals(peer.id, m_id)) {
-                        SendPing(peer.ip_address, peer.port);
-                        Send(peer.ip_address, peer.port, ("FIND_NODE_REQUEST" + ":" + command_count + " " + m_id).getBytes(), true);
-                    }
-                }
-            }
-        }
+        for(int i = 0; i < m_m_bits; i++)
+            lookups.add(LookupNode(m_bucket_ids[i]));
+        return Lib.AllOf(lookups);
     }
 
-    public void FindValueRequest(RoutingTableEntry peer_info, byte[] message) throws IOException, InterruptedException
+    public CompletableFuture<DataItem> FindDataItem(String data_id) throws NoSuchAlgorithmException
     {
-        String[] message_string_tokens = new String(message, StandardCharsets.UTF_8).replaceAll("\0", "").split(" ");
-        assert message_string_tokens.length == 2;
+        return FindDataItem(data_id, m_quorum);
+    }
 
-        BigInteger command_count = new BigInteger(message_string_tokens[0].split(":")[1]);
-        BigInteger key_id = new BigInteger(message_string_tokens[1]);
-        RoutingTableEntry[] close_peers = GetClosePeers(key_id, m_m_bits);
+    // Completes with the newest version held by quorum.r replicas of the key, this node counting
+    // as one when it is a replica, and fails when fewer answer. Replicas that answered with an
+    // older version, or none, are sent the newest. When none of them holds the key, falls back to
+    // a lookup across the network and completes with null if that ends without a hit.
+    public CompletableFuture<DataItem> FindDataItem(String data_id, Quorum quorum) throws NoSuchAlgorithmException
+    {
+        NodeId key = NodeId.Hash(data_id, m_m_bits);
+        RoutingTableEntry[] candidates = GetClosePeers(key, quorum.n);
+        int local_replica = IsReplica(key, candidates, quorum.n) ? 1 : 0;
+        int replicas = Math.min(quorum.n - local_replica, candidates.length);
+        int needed = Math.min(quorum.r, replicas + local_replica) - local_replica;
+        DataItem local = m_data_table.Get(key);
+
+        if(needed <= 0)
+            return (local != null) ? CompletableFuture.completedFuture(local) : LookupDataItem(key);
+
+        List<CompletableFuture<Lib.Pair<RoutingTableEntry, DataItem>>> answers = new ArrayList<>(replicas);
+        for(int i = 0; i < replicas; i++)
+            answers.add(QueryReplica(candidates[i], key));
+
+        return Lib.FirstK(answers, needed)
+                  .exceptionallyCompose(e -> CompletableFuture.failedFuture(new IOException("Data item (" + data_id + ") was not answered for by " + (needed + local_replica) + " replicas")))
+                  .thenCompose(found ->
+                  {
+                      DataItem newest = local;
+
+                      for(var answer : found)
+                      {
+                          if(answer.second != null && (newest == null || answer.second.version > newest.version))
+                              newest = answer.second;
+                      }
+
+                      if(newest == null)
+                          return LookupDataItem(key);
+
+                      RepairReplicas(key, local, found, newest);
+                      return CompletableFuture.completedFuture(newest);
+                  });
+    }
+
+    // True when fewer than n of the peers given are closer to the key than this node.
+    private boolean IsReplica(NodeId key, RoutingTableEntry[] peers, int n)
+    {
+        int closer = 0;
 
-        byte[] to_send = BindCommand(("FIND_VALUE_RESPONSE" + ":" + command_count + " "), close_peers);
+        for(var peer : peers)
+        {
+            if(key.CompareDistance(peer.id, m_id) < 0)
+                closer++;
+        }
+        return closer < n;
+    }
 
-        Send(peer_info.ip_address, peer_info.port, to_send, false);
+    // Completes with the replica and the item it holds, or null for the item when it holds none.
+    private CompletableFuture<Lib.Pair<RoutingTableEntry, DataItem>> QueryReplica(RoutingTableEntry replica, NodeId key)
+    {
+        try
+        {
+            return SendQuery(replica, Opcode.FIND_VALUE_REQUEST, key).thenApply(frame ->
+                    new Lib.Pair<>(replica, (frame.payload.get() == Codec.VALUE_FOUND) ? Codec.ReadDataItem(frame.payload) : null));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
     }
 
-    public void FindValueResponse(RoutingTableEntry peer_info, byte[] message) throws IOException, InterruptedException, ClassNotFoundException
+    // Read repair: keeps the newest version here and sends it to the replicas that answered with
+    // an older one or none.
+    private void RepairReplicas(NodeId key, DataItem local, List<Lib.Pair<RoutingTableEntry, DataItem>> answers, DataItem newest)
     {
-        String[] message_string_tokens = new String(message, StandardCharsets.UTF_8).replaceAll("\0", "").split(" ");
-        BigInteger command_count = new BigInteger(message_string_tokens[0].split(":")[1]);
+        if(newest == local)
+            return;
 
-        ByteArrayInputStream in = new ByteArrayInputStream(Arrays.copyOfRange(message, message_string_tokens[0].length() + 1, message.length));
-        ObjectInputStream iis = new ObjectInputStream(in);
+        m_clock.Update(newest.version);
+        MergeDataItem(key, newest, !newest.IsCached() && IsResponsibleFor(key));
 
-        SendPing(peer_info.ip_address, peer_info.port);
-        RoutingTableEntry[] peers = (RoutingTableEntry[]) iis.readObject();
+        if(newest.IsCached())
+            return;
 
-        for(var peer : peers)
+        try
         {
-            BigInteger bucket = DetermineBucket(peer.id);
-
-            if(!(m_routing_table.get(bucket).containsKey(peer.id)))
+            for(var answer : answers)
             {
-                if(!Objects.equals(peer.id, m_id))
-                {
-                    SendPing(peer.ip_address, peer.port);
-                    Send(peer.ip_address, peer.port, ("FIND_VALUE_REQUEST" + ":" + command_count + " " + m_id).getBytes(), true);
-                }
+                if(answer.second == null || answer.second.version < newest.version)
+                    SendDataItem(answer.first, newest);
             }
         }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    public void JoinThroughPeer(String boot_ip, int boot_port) throws InterruptedException
+    // Completes with the item from the first peer found holding it across the network, or with
+    // null when the lookup ends without a hit. Items found are kept locally.
+    private CompletableFuture<DataItem> LookupDataItem(NodeId key)
     {
-        Send(boot_ip, boot_port, (FormatCommand("CONNECT_REQUEST") + " " + m_id).getBytes(), true);
+        return LookupValue(key).thenApply(result ->
+        {
+            if(result.value != null)
+            {
+                m_clock.Update(result.value.version);
+                MergeDataItem(key, result.value, false);
+                CacheAlongLookupPath(result);
+            }
+            return result.value;
+        });
     }
 
-    public void JoinThroughBroadcast() throws InterruptedException
+    private void PutDataItem(NodeId key, DataItem data_item, boolean pinned)
     {
-        byte[] broadcast_join_message = (FormatCommand("CONNECT_REQUEST") + " " + m_id).getBytes();
-        m_sender.AddSendItem(null, broadcast_join_message);
+        if(m_data_table.Put(key, data_item, pinned))
+            OnDataItemAdmitted(key, data_item);
     }
 
-    public void SendFindNode(BigInteger id) throws InterruptedException
+    // Keeps the item only if it is newer than the one held under the key; see DataStore.Merge.
+    private boolean MergeDataItem(NodeId key, DataItem data_item, boolean pinned)
     {
-        RoutingTableEntry[] close_peers_to_key = GetClosePeers(id, m_alpha);
+        if(!m_data_table.Merge(key, data_item, pinned))
+            return false;
 
-        for(var peer : close_peers_to_key)
-            Send(peer.ip_address, peer.port, (FormatCommand("FIND_NODE_REQUEST") + " " + id).getBytes(), true);
+        OnDataItemAdmitted(key, data_item);
+        return true;
     }
 
-    public void SendFindValue(BigInteger id) throws InterruptedException
+    private void OnDataItemAdmitted(NodeId key, DataItem data_item)
     {
-        RoutingTableEntry[] close_peers_to_key = GetClosePeers(id, m_alpha);
+        m_data_keys.put(key, data_item.key);
 
-        for(var peer : close_peers_to_key)
-            Send(peer.ip_address, peer.port, (FormatCommand("FIND_VALUE_REQUEST") + " " + id).getBytes(), true);
+        if(data_item.refreshed_ms == 0)
+            data_item.refreshed_ms = System.currentTimeMillis();
+        m_republisher.Track(key, data_item);
     }
 
-    public void SendDataItem(String ip, int port, DataItem<?> data_item) throws InterruptedException, IOException
+    public void SetQuorum(Quorum quorum)
     {
-        byte[] to_send = BindCommand((FormatCommand("STORE") + " "), data_item);
-        Send(ip, port, to_send, false);
+        this.m_quorum = quorum;
+        m_data_table.InvalidateResponsibility();
     }
 
-    public void SendPing(String ip, int port) throws InterruptedException
+    // True when fewer than quorum.n known peers are closer to the key than this node, i.e. this
+    // node is one of the replicas that should hold it.
+    public boolean IsResponsibleFor(NodeId key)
     {
-        Send(ip, port, (FormatCommand("PING") + " " + this.m_nickname + "," + this.m_id).getBytes(), false);
+        int n = m_quorum.n;
+        return IsReplica(key, GetClosePeers(key, n), n);
     }
 
-    public void SendPong(String ip, int port) throws InterruptedException
+    // The other nodes among the quorum.n replicas of the key, nearest first.
+    RoutingTableEntry[] ReplicasOf(NodeId key)
     {
-        Send(ip, port, (FormatCommand("PONG") + " " + this.m_nickname + "," + this.m_id).getBytes(), false);
-    }
+        int n = m_quorum.n;
+        RoutingTableEntry[] peers = GetClosePeers(key, n);
 
-    public void ContactAllBuckets() throws InterruptedException
-    {
-        for(int i = 0; i < m_m_bits; i++)
-        {
-            BigInteger bucket = BigInteger.valueOf(1).shiftLeft(i);
-            SendFindNode(bucket);
-        }
+        return IsReplica(key, peers, n) ? Arrays.copyOf(peers, Math.min(peers.length, n - 1)) : peers;
     }
 
-    public void GetDataItem(String data_id) throws NoSuchAlgorithmException, InterruptedException, IOException
+    // Stores a copy of a found value at the closest node on the lookup path that answered without
+    // it (Kademlia 2.3); peers never asked, or that did not answer, are passed over. The copy's
+    // lifetime halves for every node of the lookup that lies between it and the key, so caches
+    // far from the key are short-lived.
+    private void CacheAlongLookupPath(Lookup.Result result)
     {
-        BigInteger key = Lib.SHA1(data_id, BigInteger.valueOf(1).shiftLeft(m_m_bits));
-
-        Optional<?> value;
+        if(result.missed.length == 0)
+            return;
 
-        if(!m_data_table.containsKey(key))
-            value = Optional.empty();
-        else value = (Optional<?>) m_data_table.get(key).value;
+        RoutingTableEntry peer = result.missed[0];
+        int closer = 0;
 
-        if(value.isEmpty())
+        for(var entry : result.closest)
         {
-            SendFindNode(key);
+            if(result.target.CompareDistance(entry.id, peer.id) < 0)
+                closer++;
+        }
 
-            RoutingTableEntry[] closest_peers_to_key = GetClosePeers(key, m_alpha);
-            DataItem<?> data_item = new DataItem<>(data_id, "", false);
+        DataItem cached = new DataItem(result.value.key, result.value.Value(), result.value.is_file);
+        cached.version = result.value.version;
+        cached.is_manifest = result.value.is_manifest;
+        cached.is_cached = true;
+        cached.SetTimeToLive(CACHE_TTL_MS >> Math.min(closer, 20));
 
-            for(var peer : closest_peers_to_key)
-                SendDataItem(peer.ip_address, peer.port, data_item);
+        try
+        {
+            SendDataItem(peer, cached);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
         }
     }
 
+    public DataItem GetDataItem(String data_id) throws NoSuchAlgorithmException
+    {
+        return FindDataItem(data_id).join();
+    }
+
     public boolean RemoveDataItem(String data_key) throws NoSuchAlgorithmException
     {
-        BigInteger key = Lib.SHA1(data_key, BigInteger.valueOf(1).shiftLeft(m_m_bits));
+        NodeId key = NodeId.Hash(data_key, m_m_bits);
 
-        if(m_data_table.containsKey(key) && m_data_keys.containsKey(key))
+        if(m_data_table.Contains(key) && m_data_keys.containsKey(key))
         {
             m_data_keys.remove(key);
-            m_data_table.remove(key);
+            m_data_table.Remove(key);
             return true;
         } else return false;
     }
 
-    public String FormatCommand(String command)
+    // Drops an item whose expiry has passed, unless it was replaced meanwhile. Leaving the store
+    // releases the chunks a manifest names, so an expired file takes its chunks with it.
+    boolean ExpireDataItem(NodeId key, DataItem data_item)
     {
-        BigInteger curr_command = m_sender.GetAndIncrementSendCount();
-        return (command + ":" + curr_command);
+        if(!m_data_table.Remove(key, data_item))
+            return false;
+
+        m_data_keys.remove(key);
+        return true;
+    }
+
+    public long NextRequestId()
+    {
+        return m_sender.GetAndIncrementSendCount();
+    }
+
+    public byte[] FormatCommand(byte opcode)
+    {
+        return BindCommand(opcode, NextRequestId());
     }
 
     public void Close()
@@ -431,25 +712,164 @@ public class Peer
         this.m_sender.SetState(false);
         this.m_receiver.SetState(false);
         this.m_heartbeat.SetState(false);
-        this.m_socket.m_socket.close();
+        this.m_timers.Stop();
+        this.m_disk.shutdown();
+
+        try
+        {
+            this.m_disk.awaitTermination(DISK_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        this.m_data_table.Close();
+
+        if(m_routing_snapshot != null)
+            m_routing_snapshot.Write(m_routing_table);
+        this.m_socket.Close();
+    }
+
+    // Values that do not fit in one datagram are cut into chunks kept here by content hash; the
+    // key then holds their manifest and the nodes it reaches pull the chunks they lack from this
+    // one, so the same value stored under several keys is held and sent once.
+    public CompletableFuture<Integer> AddDataItem(String key, byte[] value, boolean is_file, Quorum quorum) throws IOException, NoSuchAlgorithmException, InterruptedException
+    {
+        if(value.length <= MAX_INLINE_VALUE)
+            return AddDataItem(key, new DataItem(key, value, is_file), quorum);
+        else return AddManifest(key, m_chunk_store.Import(Channels.newChannel(new ByteArrayInputStream(value)), CHUNK_SIZE), is_file, quorum);
+    }
+
+    public CompletableFuture<Integer> AddFile(String key, Path file, Quorum quorum) throws IOException, NoSuchAlgorithmException, InterruptedException
+    {
+        if(Files.size(file) <= MAX_INLINE_VALUE)
+            return AddDataItem(key, Files.readAllBytes(file), true, quorum);
+        else return AddManifest(key, m_chunk_store.Import(file, CHUNK_SIZE), true, quorum);
+    }
+
+    // The value of the item, read back from its chunks when it holds a manifest; chunks missing
+    // here are fetched from the nodes closest to the key first, and deleted again afterwards
+    // unless a manifest held here names them.
+    public CompletableFuture<byte[]> ReadValue(DataItem data_item) throws NoSuchAlgorithmException
+    {
+        if(!data_item.is_manifest)
+            return CompletableFuture.completedFuture(data_item.Value());
+
+        Manifest manifest = Manifest.Decode(data_item.Value());
+        if(manifest == null || manifest.length > MAX_READ_VALUE)
+            return CompletableFuture.failedFuture(new IOException("Data item (" + data_item.key + ") is too large to read, use /export to save it"));
+
+        List<RoutingTableEntry> holders = Arrays.asList(ReplicasOf(NodeId.Hash(data_item.key, m_m_bits)));
+
+        // Reading the chunks back is disk work, kept off the receive loop like their writes.
+        return new ChunkTransfer(this, m_chunk_store, m_disk, manifest, holders, null).Start()
+                                                                                     .thenApplyAsync(result -> m_chunk_store.Assemble(manifest), m_disk)
+                                                                                     .whenCompleteAsync((value, error) -> m_chunk_store.Collect(manifest), m_disk);
     }
 
-    public void AddDataItem(String key, byte[] value, boolean is_file) throws NoSuchAlgorithmException, InterruptedException, IOException
+    // Writes a file retrieved under a key to path, fetching its chunks from the nodes closest to
+    // the key when the item is a manifest.
+    public CompletableFuture<ChunkTransfer.Result> ExportFile(DataItem data_item, Path file) throws IOException, NoSuchAlgorithmException
     {
-        BigInteger data_key = Lib.SHA1(key, BigInteger.valueOf(1).shiftLeft(m_m_bits));
-        this.m_data_table.put(data_key, new DataItem<>(key, value, is_file));
-        this.m_data_keys.put(data_key, key);
+        if(!data_item.is_manifest)
+        {
+            Files.write(file, data_item.Value(), StandardOpenOption.CREATE_NEW);
+            return CompletableFuture.completedFuture(new ChunkTransfer.Result(data_item.ValueLength(), 0, 0, 0));
+        }
+
+        Manifest manifest = Manifest.Decode(data_item.Value());
+        if(manifest == null)
+            return CompletableFuture.failedFuture(new IOException("Data item (" + data_item.key + ") holds a malformed manifest"));
+
+        FileChannel output = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        List<RoutingTableEntry> holders = Arrays.asList(ReplicasOf(NodeId.Hash(data_item.key, m_m_bits)));
+
+        return new ChunkTransfer(this, m_chunk_store, m_disk, manifest, holders, output).Start().whenCompleteAsync((result, error) ->
+        {
+            try
+            {
+                output.close();
+            }
+            catch (IOException ignored) {}
+            m_chunk_store.Collect(manifest);
+        }, m_disk);
+    }
+
+    private CompletableFuture<Integer> AddManifest(String key, Manifest manifest, boolean is_file, Quorum quorum) throws NoSuchAlgorithmException
+    {
+        DataItem data_item = new DataItem(key, manifest.Encode(), is_file);
+        data_item.is_manifest = true;
+        return AddDataItem(key, data_item, quorum);
+    }
+
+    // Keeps the item here and sends it to the quorum.n replicas of its key, this node counting as
+    // one when it is a replica. Completes with the number of replicas holding it once quorum.w
+    // do, and fails when too few acknowledge. A replica that does not acknowledge is stood in for
+    // by the next closest node, and is handed the write later through a hint.
+    private CompletableFuture<Integer> AddDataItem(String key, DataItem data_item, Quorum quorum) throws NoSuchAlgorithmException
+    {
+        NodeId data_key = NodeId.Hash(key, m_m_bits);
+        data_item.version = m_clock.Now();
+        m_republisher.Publish(data_item);
+        PutDataItem(data_key, data_item, true);
+
+        RoutingTableEntry[] candidates = GetClosePeers(data_key, quorum.n + MAX_FALLBACKS);
+        int local_replica = IsReplica(data_key, candidates, quorum.n) ? 1 : 0;
+        int replicas = Math.min(quorum.n - local_replica, candidates.length);
+        int needed = Math.min(quorum.w, replicas + local_replica) - local_replica;
+
+        Deque<RoutingTableEntry> fallbacks = new ArrayDeque<>(Arrays.asList(candidates).subList(replicas, candidates.length));
+        List<CompletableFuture<Frame>> acks = new ArrayList<>(replicas);
+
+        for(int i = 0; i < replicas; i++)
+        {
+            RoutingTableEntry replica = candidates[i];
+            CompletableFuture<Frame> sent = TrySendStore(replica, data_item);
+
+            // Hinted on the send itself, which still settles after the quorum is met.
+            sent.whenComplete((frame, e) ->
+            {
+                if(e != null)
+                    m_hints.Add(replica, data_key, data_item);
+            });
+            acks.add(sent.exceptionallyCompose(e -> StoreOnFallback(data_item, fallbacks, e)));
+        }
+
+        return Lib.FirstK(acks, needed)
+                  .exceptionallyCompose(e -> CompletableFuture.failedFuture(new IOException("Data item (" + key + ") was not acknowledged by " + (needed + local_replica) + " replicas")))
+                  .thenApply(acked -> acked.size() + local_replica);
+    }
+
+    private CompletableFuture<Frame> StoreOnFallback(DataItem data_item, Deque<RoutingTableEntry> fallbacks, Throwable error)
+    {
+        RoutingTableEntry fallback;
+
+        synchronized (fallbacks)
+        {
+            fallback = fallbacks.poll();
+        }
 
-        RoutingTableEntry[] close_peers = GetClosePeers(data_key, m_m_bits);
-        DataItem<?> data_item = this.m_data_table.get(data_key);
+        if(fallback == null)
+            return CompletableFuture.failedFuture(error);
+        return TrySendStore(fallback, data_item).exceptionallyCompose(e -> StoreOnFallback(data_item, fallbacks, e));
+    }
 
-        for(var peer : close_peers)
-            SendDataItem(peer.ip_address, peer.port, data_item);
+    private CompletableFuture<Frame> TrySendStore(RoutingTableEntry peer, DataItem data_item)
+    {
+        try
+        {
+            return SendStore(peer, data_item);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
     }
 
-    public Lib.Pair<RoutingTableEntry, byte[]> GetNextReceived() throws InterruptedException
+    public RingBuffer GetPipeline()
     {
-        return this.m_received.poll(1000, TimeUnit.MILLISECONDS);
+        return this.m_pipeline;
     }
 
     public final core.peer.Node GetSocket()
@@ -457,28 +877,65 @@ public class Peer
         return this.m_socket;
     }
 
-    public Lib.Pair<Semaphore, Receiver.Packet> Send(String remote_ip, int remote_port, byte[] message, boolean lock) throws InterruptedException
+    public void Send(String remote_ip, int remote_port, byte[] message, boolean lock) throws InterruptedException
+    {
+        Send(new RoutingTableEntry(remote_ip, remote_port), message, lock);
+    }
+
+    // With lock set, waits up to REQUEST_TIMEOUT_MS for the response to the message.
+    public void Send(RoutingTableEntry peer, byte[] message, boolean lock) throws InterruptedException
+    {
+        if(!lock)
+        {
+            this.m_sender.AddSendItem(peer, message);
+            return;
+        }
+
+        try
+        {
+            SendAsync(peer, message).get();
+        }
+        catch (ExecutionException ignored) {}
+    }
+
+    public CompletableFuture<Frame> SendAsync(RoutingTableEntry peer, byte[] message) throws InterruptedException
     {
-        this.m_sender.AddSendItem(new RoutingTableEntry(remote_ip, remote_port), message);
-        var packet = this.m_sender.CreateReceivedItem(message);
+        return SendAsync(peer, message, REQUEST_TIMEOUT_MS);
+    }
 
-        if(lock)
-            packet.first.tryAcquire(10, TimeUnit.SECONDS);
+    // The future completes with the response frame, fails with a TimeoutException after
+    // timeout_ms, and cancelling it stops waiting for the response.
+    public CompletableFuture<Frame> SendAsync(RoutingTableEntry peer, byte[] message, long timeout_ms) throws InterruptedException
+    {
+        var response = this.m_requests.Register(Frame.PeekRequestId(message), peer.GetAddress(), timeout_ms);
+        this.m_sender.AddSendItem(peer, message);
 
-        return packet;
+        return response;
+    }
+
+    public void PrintStats()
+    {
+        m_sender.PrintStats();
+        m_requests.PrintStats();
+        m_data_table.PrintStats();
+        m_chunk_store.PrintStats();
+        m_anti_entropy.PrintStats();
+        m_hints.PrintStats();
+        m_republisher.PrintStats();
+        m_detector.PrintStats();
     }
 
     public void PrintRoutingTable()
     {
         System.out.println("Peer (" + m_nickname + ":" + m_id + ") routing table\n---------------");
-        for(var bucket : m_routing_table.entrySet())
+        for(int i = 0; i < m_m_bits; i++)
         {
-            var bucket_values = bucket.getValue();
+            KBucket bucket = m_routing_table[i];
 
-            System.out.print("(" + bucket.getKey() + ") [" + bucket_values.size() + " " + "Peers] |");
-            for(var peer : bucket_values.entrySet())
+            System.out.print("(" + m_bucket_ids[i] + ") [" + bucket.Size() + " " + "Peers, " + bucket.CacheSize() + " Cached] |");
+            for(var peer : bucket.Entries())
             {
-                System.out.print(" " + "(" + peer.getValue().nick_name + ":" + peer.getKey() + ")");
+                System.out.print(" " + "(" + peer.nick_name + ":" + peer.id + ")");
             }
             System.out.println();
         }
@@ -489,17 +946,22 @@ public class Peer
     {
         System.out.println("Peer (" + m_nickname + ":" + m_id + ") data table\n---------------");
 
-        if(m_data_table.isEmpty())
+        if(m_data_table.IsEmpty())
         {
             System.out.println("No data entries");
             return;
         }
 
-        for(var data : m_data_table.entrySet())
+        for(var data : m_data_table.Snapshot().entrySet())
         {
-            if(!data.getValue().is_file)
-                System.out.println(data.getKey() + "(" + data.getValue().key + ")" + " " + (LocalTime.ofNanoOfDay(data.getValue().unix_timestamp)) + " | " + new String((byte[])data.getValue().value));
-            else System.out.println(data.getKey() + "(" + data.getValue().key + ")" + " " + (LocalTime.ofNanoOfDay(data.getValue().unix_timestamp)) + " | " + "(file, use /print to see content)");
+            String cached = data.getValue().IsCached() ? " (cached, " + data.getValue().TimeToLive() / 1000 + "s)" : "";
+            LocalTime written = LocalTime.ofInstant(Instant.ofEpochMilli(HybridClock.PhysicalOf(data.getValue().version)), ZoneId.systemDefault());
+
+            if(data.getValue().is_manifest)
+                System.out.println(data.getKey() + "(" + data.getValue().key + ")" + cached + " " + written + " | " + "(" + (data.getValue().is_file ? "file" : "value") + " in chunks, use /export to save it)");
+            else if(!data.getValue().is_file)
+                System.out.println(data.getKey() + "(" + data.getValue().key + ")" + cached + " " + written + " | " + new String(data.getValue().Value()));
+            else System.out.println(data.getKey() + "(" + data.getValue().key + ")" + cached + " " + written + " | " + "(file, use /print to see content)");
         }
         System.out.println("---------------");
     }
@@ -521,236 +983,393 @@ public class Peer
         System.out.println("---------------");
     }
 
-    public void AddReceiveItem(RoutingTableEntry r, byte[] s) throws InterruptedException
+    // Any frame received shows its sender is alive, so busy peers never need pinging.
+    public boolean AddReceiveItem(RoutingTableEntry r, Frame s)
     {
-        this.m_received.put(new Lib.Pair<>(r, s));
+        m_detector.Heard(new NodeId(s.sender_id));
+        return this.m_pipeline.Publish(r, s);
     }
 
-    public void SetPingStateForPeer(BigInteger peer_id, boolean state)
+    public final void RemovePeerFromRoutingTable(NodeId peer_id)
     {
-        assert m_ping_vector.containsKey(peer_id);
-        this.m_ping_vector.put(peer_id, state);
-    }
+        RoutingTableEntry promoted = this.m_routing_table[DetermineBucket(peer_id)].Remove(peer_id);
+        m_detector.Forget(peer_id);
+        m_data_table.InvalidateResponsibility();
 
-    public final boolean GetPingStateForPeer(BigInteger peer_id)
-    {
-        assert m_ping_vector.containsKey(peer_id);
-        return this.m_ping_vector.get(peer_id);
+        if(promoted != null)
+            m_detector.Track(promoted.id);
     }
 
-    public final void RemovePeerFromRoutingTable(BigInteger peer_id)
+    public RoutingTableEntry[] GetClosePeers(NodeId peer_id, int amt)
     {
-        BigInteger bucket = DetermineBucket(peer_id);
-        assert this.m_routing_table.containsKey(peer_id) && this.m_ping_vector.containsKey(peer_id);
-
-        this.m_routing_table.get(bucket).remove(peer_id);
-        this.m_ping_vector.remove(peer_id);
+        return GetClosePeers(m_routing_table, m_id, peer_id, amt);
     }
 
-    public RoutingTableEntry[] GetClosePeers(BigInteger peer_id, int amt)
+    // Returns up to amt peers of the table of node id closest to peer_id, nearest first. Buckets
+    // are visited in bands of increasing distance from the target and the walk stops after the
+    // first band that fills the heap: the target's own bucket b, then all buckets below b
+    // (distance [2^b, 2^(b+1))), then each bucket above b, one power of two further away than
+    // the last.
+    static RoutingTableEntry[] GetClosePeers(KBucket[] routing_table, NodeId id, NodeId peer_id, int amt)
     {
-        BigInteger total = GetTotalPeersInRoutingTable(peer_id);
-        boolean take_all = total.compareTo(BigInteger.valueOf(amt)) <= 0;
+        if(amt <= 0)
+            return new RoutingTableEntry[0];
 
-        ArrayList<RoutingTableEntry> all_peers = new ArrayList<>();
-        ArrayList<RoutingTableEntry> remaining_peers = new ArrayList<>();
+        PriorityQueue<RoutingTableEntry> closest = new PriorityQueue<>(amt, (a, b) -> peer_id.CompareDistance(b.id, a.id));
+        int target_bucket = id.Bucket(peer_id);
 
-        for(int i = 0; i < m_m_bits; i++)
+        if(target_bucket >= 0)
         {
-            Lib.Pair<RoutingTableEntry[], RoutingTableEntry[]> bucket_peers = GetClosePeersFromBucket(peer_id, BigInteger.valueOf(1).shiftLeft(i), take_all);
-            if(bucket_peers.first != null) {
-                all_peers.addAll(Arrays.asList(bucket_peers.first));
-            }
+            OfferClosePeers(peer_id, routing_table[target_bucket], closest, amt);
 
-            if(bucket_peers.second != null) {
-                remaining_peers.addAll(Arrays.asList(bucket_peers.second));
+            if(closest.size() < amt)
+            {
+                for(int i = target_bucket - 1; i >= 0; i--)
+                    OfferClosePeers(peer_id, routing_table[i], closest, amt);
             }
         }
 
-        // Get remaining peers based on closest to equal total.
-        if(!take_all && all_peers.size() < amt)
-        {
-            int diff = Math.abs(all_peers.size() - amt);
+        for(int i = target_bucket + 1; i < routing_table.length && closest.size() < amt; i++)
+            OfferClosePeers(peer_id, routing_table[i], closest, amt);
 
-            while(diff > 0)
-            {
-                int curr_closest_peer_idx = GetRemainingClosestPeers(peer_id, remaining_peers);
+        RoutingTableEntry[] peers = new RoutingTableEntry[closest.size()];
+        for(int i = peers.length - 1; i >= 0; i--)
+            peers[i] = closest.poll();
 
-                all_peers.add(remaining_peers.get(curr_closest_peer_idx));
-                remaining_peers.remove(curr_closest_peer_idx);
-                diff--;
-            }
-        }
+        return peers;
+    }
 
-        return all_peers.toArray(new RoutingTableEntry[all_peers.size()]);
+    private byte[] BindCommand(byte opcode, long request_id)
+    {
+        return Frame.Allocate(opcode, request_id, m_id.Value(), 0).array();
     }
 
-    private byte[] BindCommand(String initial, Object serialized) throws IOException
+    private byte[] BindCommand(byte opcode, long request_id, NodeId id)
     {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(out);
+        ByteBuffer buffer = Frame.Allocate(opcode, request_id, m_id.Value(), Long.BYTES);
+        buffer.putLong(id.Value());
+        return buffer.array();
+    }
 
-        oos.writeObject(serialized);
-        oos.flush();
+    private byte[] BindCommand(byte opcode, long request_id, String value)
+    {
+        ByteBuffer buffer = Frame.Allocate(opcode, request_id, m_id.Value(), Codec.SizeOf(value));
+        Codec.Write(buffer, value);
+        return buffer.array();
+    }
 
-        ByteBuffer buff = ByteBuffer.allocate(initial.getBytes().length + out.size());
+    private byte[] BindCommand(byte opcode, long request_id, String[] values)
+    {
+        ByteBuffer buffer = Frame.Allocate(opcode, request_id, m_id.Value(), Codec.SizeOf(values));
+        Codec.Write(buffer, values);
+        return buffer.array();
+    }
 
-        buff.put(initial.getBytes());
-        buff.put(out.toByteArray());
+    private byte[] BindCommand(byte opcode, long request_id, RoutingTableEntry[] entries)
+    {
+        ByteBuffer buffer = Frame.Allocate(opcode, request_id, m_id.Value(), Codec.SizeOf(entries));
+        Codec.Write(buffer, entries);
+        return buffer.array();
+    }
+
+    private byte[] BindCommand(byte opcode, long request_id, DataItem item)
+    {
+        ByteBuffer buffer = Frame.Allocate(opcode, request_id, m_id.Value(), Codec.SizeOf(item));
+        Codec.Write(buffer, item);
+        return buffer.array();
+    }
+
+    private byte[] BindValueResponse(long request_id, DataItem item)
+    {
+        ByteBuffer buffer = Frame.Allocate(Opcode.FIND_VALUE_RESPONSE, request_id, m_id.Value(), Byte.BYTES + Codec.SizeOf(item));
+        buffer.put(Codec.VALUE_FOUND);
+        Codec.Write(buffer, item);
+        return buffer.array();
+    }
+
+    private byte[] BindStoreAck(long request_id, long version)
+    {
+        ByteBuffer buffer = Frame.Allocate(Opcode.STORE_ACK, request_id, m_id.Value(), Long.BYTES);
+        buffer.putLong(version);
+        return buffer.array();
+    }
 
-        return buff.array();
+    private byte[] BindChunkRequest(long request_id, byte[] hash, int offset, int length)
+    {
+        ByteBuffer buffer = Frame.Allocate(Opcode.CHUNK_REQUEST, request_id, m_id.Value(), hash.length + 2 * Integer.BYTES);
+        buffer.put(hash).putInt(offset).putInt(length);
+        return buffer.array();
+    }
+
+    private byte[] BindChunkResponse(long request_id, ByteBuffer piece)
+    {
+        int length = (piece == null) ? 0 : piece.remaining();
+        ByteBuffer buffer = Frame.Allocate(Opcode.CHUNK_RESPONSE, request_id, m_id.Value(), Byte.BYTES + Integer.BYTES + length);
+        buffer.put(piece == null ? Codec.VALUE_NOT_FOUND : Codec.VALUE_FOUND).putInt(length);
+
+        if(piece != null)
+            buffer.put(piece);
+        return buffer.array();
     }
 
-    private RoutingTableEntry GetClosestPeerInRoutingTable(BigInteger peer_id)
+    private byte[] BindSyncRequest(long request_id, List<Integer> ranges, long[] digests)
     {
-        BigInteger bucket = DetermineBucket(peer_id);
+        ByteBuffer buffer = Frame.Allocate(Opcode.SYNC_REQUEST, request_id, m_id.Value(), Integer.BYTES + ranges.size() * (Integer.BYTES + Long.BYTES));
+        buffer.putInt(ranges.size());
 
-        BigInteger min = Distance(m_routing_table.get(bucket).firstEntry().getValue().id, peer_id);
-        BigInteger min_peer = m_routing_table.get(bucket).firstKey();
+        for(int range : ranges)
+            buffer.putInt(range).putLong(digests[range]);
+        return buffer.array();
+    }
 
-        for(var peer : m_routing_table.get(bucket).entrySet())
+    private byte[] BindSyncResponse(long request_id, ByteBuffer keys)
+    {
+        ByteBuffer buffer = Frame.Allocate(Opcode.SYNC_RESPONSE, request_id, m_id.Value(), keys.remaining());
+        buffer.put(keys);
+        return buffer.array();
+    }
+
+    private byte[] BindValueResponse(long request_id, RoutingTableEntry[] entries)
+    {
+        ByteBuffer buffer = Frame.Allocate(Opcode.FIND_VALUE_RESPONSE, request_id, m_id.Value(), Byte.BYTES + Codec.SizeOf(entries));
+        buffer.put(Codec.VALUE_NOT_FOUND);
+        Codec.Write(buffer, entries);
+        return buffer.array();
+    }
+
+    // Keeps the amt closest peers seen so far in a max-heap ordered by distance to the target.
+    private static void OfferClosePeers(NodeId peer_id, KBucket bucket, PriorityQueue<RoutingTableEntry> closest, int amt)
+    {
+        for(var peer : bucket.Entries())
         {
-            if(Distance(peer.getKey(), peer_id).compareTo(min) < 0)
+            if(peer.id.equals(peer_id))
+                continue;
+
+            if(closest.size() < amt)
+                closest.add(peer);
+            else if(peer_id.CompareDistance(peer.id, closest.peek().id) < 0)
             {
-                min = Distance(peer.getKey(), peer_id);
-                min_peer = peer.getKey();
+                closest.poll();
+                closest.add(peer);
             }
         }
-        return m_routing_table.get(bucket).get(min_peer);
     }
 
-    private Lib.Pair<RoutingTableEntry[], RoutingTableEntry[]> GetClosePeersFromBucket(BigInteger peer_id, BigInteger bucket_id, boolean take_all)
+    // Bucket i holds the peers whose highest bit differing from m_id is bit i, i.e. the peers
+    // sharing an (m - 1 - i)-bit prefix with this node. Our own id falls into bucket 0.
+    private int DetermineBucket(NodeId id)
     {
-        ArrayList<RoutingTableEntry> peers = new ArrayList<>();
-        ArrayList<RoutingTableEntry> remaining_peers = new ArrayList<>();
-
-        BigInteger closest_peer_dist = BigInteger.valueOf(Integer.MAX_VALUE);
-        BigInteger closest_peer = BigInteger.valueOf(-1);
+        return Math.max(0, m_id.Bucket(id));
+    }
 
-        for(var peer : this.m_routing_table.get(bucket_id).entrySet())
+    private void InsertPeerIntoRoutingTable(String nick_name, NodeId peer_id, String remote_ip, int remote_port) throws InterruptedException
+    {
+        if(!Objects.equals(peer_id, m_id))
         {
-            if(!take_all)
+            KBucket bucket = this.m_routing_table[DetermineBucket(peer_id)];
+            RoutingTableEntry entry = bucket.Get(peer_id);
+
+            // Keep the existing entry while the address is unchanged so its resolved address is reused.
+            if(entry == null || entry.port != remote_port || !entry.ip_address.equals(remote_ip))
+                entry = new RoutingTableEntry(nick_name, peer_id, remote_ip, remote_port);
+
+            boolean known = bucket.Contains(peer_id);
+
+            if(bucket.Touch(entry))
             {
-                if(Distance(peer_id, peer.getKey()).compareTo(closest_peer_dist) < 0 && !Objects.equals(peer.getKey(),peer_id))
-                {
-                    closest_peer_dist = Distance(peer_id, peer.getKey());
-                    closest_peer = peer.getKey();
-                }
-            } else peers.add(peer.getValue());
-            remaining_peers.add(peer.getValue());
+                m_detector.Track(peer_id);
+                if(!known)
+                    m_data_table.InvalidateResponsibility();
+            }
+            else ProbeOldestInBucket(bucket);
         }
+    }
 
-        if(!take_all && !Objects.equals(closest_peer, (BigInteger.valueOf(-1))))
-            peers.add(this.m_routing_table.get(bucket_id).get(closest_peer));
+    // The bucket is full: ping its least recently seen peer and only replace it if it stays silent.
+    private void ProbeOldestInBucket(KBucket bucket) throws InterruptedException
+    {
+        RoutingTableEntry oldest = bucket.BeginProbe();
 
-        for (RoutingTableEntry peer : peers)
-            remaining_peers.remove(peer);
+        if(oldest == null)
+            return;
+
+        SendAsync(oldest, BindCommand(Opcode.PING, NextRequestId(), this.m_nickname), PROBE_TIMEOUT_MS).whenComplete((response, error) ->
+        {
+            bucket.EndProbe();
 
-        return new Lib.Pair<>(peers.isEmpty() ? null : peers.toArray(new RoutingTableEntry[peers.size()]),
-                              remaining_peers.isEmpty() ? null : remaining_peers.toArray(new RoutingTableEntry[remaining_peers.size()]));
+            if(error != null)
+                RemovePeerFromRoutingTable(oldest.id);
+        });
     }
 
-    private int GetRemainingClosestPeers(BigInteger peer_id, ArrayList<RoutingTableEntry> remaining_peers)
+    private void DefineUDPSocket(int port, boolean nio) throws UnknownHostException
     {
-        BigInteger curr_closest_peer_dist = BigInteger.valueOf(Integer.MAX_VALUE);
-
-        int curr_closest_idx = -1;
-        for (int i = 0; i < remaining_peers.size(); i++)
+        try
         {
-            if (Distance(peer_id, remaining_peers.get(i).id).compareTo(curr_closest_peer_dist) < 0 && remaining_peers.get(i).id != peer_id) {
-                curr_closest_peer_dist = Distance(peer_id, remaining_peers.get(i).id);
-                curr_closest_idx = i;
-            }
+            this.m_socket = core.peer.Node.Create(port, nio);
+        }
+        catch(BindException e)
+        {
+            System.err.println("Ensure the IP address and port is not currently opened (" + InetAddress.getLocalHost().getHostAddress() + ")");
+            System.exit(-1);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        return curr_closest_idx;
     }
 
-    private BigInteger GetTotalPeersInRoutingTable(BigInteger peer_id)
+    private void DefineRoutingTable() throws IOException
     {
-        BigInteger sum = BigInteger.valueOf(0);
+        this.m_routing_table = new KBucket[m_m_bits];
+        this.m_bucket_ids = new NodeId[m_m_bits];
+        this.m_restored_peers = new ArrayList<>();
 
-        for(var bucket : this.m_routing_table.entrySet())
+        for(int i = 0; i < this.m_m_bits; i++)
         {
-            int bias = 0;
-            if(bucket.getValue().get(peer_id) != null)
-                bias = -1;
-
-            sum = sum.add(BigInteger.valueOf(bucket.getValue().size()).add(BigInteger.valueOf(bias)));
+            this.m_bucket_ids[i] = new NodeId(1L << i);
+            this.m_routing_table[i] = new KBucket(m_k, m_k);
         }
 
-        return sum;
+        if(!m_persistent)
+            return;
+
+        this.m_routing_snapshot = new RoutingSnapshot(DataDirectory(), m_m_bits * m_k);
+
+        for(var entry : m_routing_snapshot.Read(MAX_RESTORED_AGE_MS))
+        {
+            if(!entry.id.equals(m_id) && m_routing_table[DetermineBucket(entry.id)].Restore(entry))
+                m_restored_peers.add(entry);
+        }
+        ScheduleRoutingSnapshot();
     }
 
-    private BigInteger Distance(BigInteger peer_id_1, BigInteger peer_id_2)
+    // Written on the disk writer like the data log checkpoint, the wheel only triggering it.
+    private void ScheduleRoutingSnapshot()
     {
-        return peer_id_1.xor(peer_id_2);
+        m_timers.Schedule(ROUTING_SNAPSHOT_INTERVAL_MS, () -> m_disk.execute(() ->
+        {
+            m_routing_snapshot.Write(m_routing_table);
+            ScheduleRoutingSnapshot();
+        }));
     }
 
-    private BigInteger DetermineBucket(BigInteger id)
+    // Contacts reloaded from the snapshot are used straight away and checked with one batch of
+    // pings: those that stay silent are dropped, and the first answer starts the lookup of our
+    // own id that refreshes the table, as a join through that peer would.
+    private void ValidateRestoredPeers() throws InterruptedException
     {
-        BigInteger min = Distance(BigInteger.valueOf(1), id);
-        BigInteger min_pow = BigInteger.valueOf(1);
+        if(m_restored_peers.isEmpty())
+            return;
 
-        for(int i = 0; i < m_m_bits; i++)
+        List<CompletableFuture<Frame>> pings = new ArrayList<>(m_restored_peers.size());
+
+        for(var peer : m_restored_peers)
         {
-            if(Distance(BigInteger.valueOf(1).shiftLeft(i), id).compareTo(min) < 0)
+            var ping = SendAsync(peer, BindCommand(Opcode.PING, NextRequestId(), this.m_nickname), PROBE_TIMEOUT_MS);
+            ping.whenComplete((response, error) ->
             {
-                min = Distance(BigInteger.valueOf(1).shiftLeft(i), id);
-                min_pow = BigInteger.valueOf(1).shiftLeft(i);
-            }
+                if(error != null)
+                    RemovePeerFromRoutingTable(peer.id);
+            });
+            pings.add(ping);
         }
-        return min_pow;
+
+        Lib.AnyOf(pings).thenRun(() -> LookupNode(m_id));
+        m_restored_peers.clear();
     }
 
-    private void InsertPeerIntoRoutingTable(String nick_name, BigInteger peer_id, String remote_ip, int remote_port)
+    private Path DataDirectory()
     {
-        if(!Objects.equals(peer_id, m_id))
-        {
-            BigInteger bucket = DetermineBucket(peer_id);
-            this.m_routing_table.get(bucket).put(peer_id, new RoutingTableEntry(nick_name, peer_id, remote_ip, remote_port));
-            m_ping_vector.put(peer_id, true);
-        }
+        return Path.of(DATA_DIRECTORY, m_socket.m_ip_address + "-" + m_socket.m_port);
     }
 
-    private void DefineUDPSocket(int port) throws UnknownHostException
+    private void DefineDataTable() throws IOException
     {
-        try
+        ValueArena arena = m_off_heap_values ? new ValueArena(2 * DATA_BUDGET_BYTES) : null;
+        DataLog log = m_persistent ? new DataLog(DataDirectory()) : null;
+
+        this.m_data_table = new DataStore(DATA_BUDGET_BYTES, m_eviction, this::IsResponsibleFor, arena, log, m_chunk_store);
+        this.m_data_keys = new HashMap<>();
+
+        m_data_table.Recover();
+        m_chunk_store.Sweep();
+        for(var data : m_data_table.Snapshot().entrySet())
         {
-            this.m_socket = new core.peer.Node(port);
+            m_data_keys.put(data.getKey(), data.getValue().key);
+            m_clock.Update(data.getValue().version);
         }
-        catch(BindException e)
+
+        // Items published here are republished straight after rejoining, with a fresh expiry.
+        for(var data : m_data_table.Snapshot().entrySet())
         {
-            System.err.println("Ensure the IP address and port is not currently opened (" + InetAddress.getLocalHost().getHostAddress() + ")");
-            System.exit(-1);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            if(m_republisher.IsPublisher(data.getValue()) && !data.getValue().IsCached())
+                data.getValue().SetTimeToLive(m_republisher.TimeToLive());
+            m_republisher.Track(data.getKey(), data.getValue());
         }
+
+        if(m_persistent)
+            ScheduleCheckpoint();
     }
 
-    private void DefineRoutingTable()
+    private void DefineChunkStore() throws IOException
     {
-        this.m_routing_table = new TreeMap<>();
+        this.m_chunk_store = new ChunkStore(DataDirectory().resolve("chunks"));
+        this.m_replications = CompletableFuture.completedFuture(null);
+    }
 
-        for(int i = 0; i < this.m_m_bits; i++)
-            this.m_routing_table.put(BigInteger.valueOf(1).shiftLeft(i), new TreeMap<>());
+    // A holder of a manifest pulls the chunks it is missing from the node that sent it and the
+    // other nodes close to the key. Replications run one after another, so chunks shared by
+    // several manifests are only fetched by the first.
+    private synchronized void ReplicateChunks(NodeId key, DataItem data_item, RoutingTableEntry sender)
+    {
+        Manifest manifest = Manifest.Decode(data_item.Value());
+
+        if(manifest == null)
+            return;
+
+        List<RoutingTableEntry> holders = new ArrayList<>();
+        holders.add(sender);
+        holders.addAll(Arrays.asList(ReplicasOf(key)));
+
+        m_replications = m_replications.handle((result, error) -> null)
+                                       .thenCompose(ignored -> new ChunkTransfer(this, m_chunk_store, m_disk, manifest, holders, null).Start())
+                                       .whenCompleteAsync((result, error) ->
+                                       {
+                                           // The item may have left the store while its chunks were on the way.
+                                           m_chunk_store.Collect(manifest);
+
+                                           if(error != null)
+                                               System.out.println("~ Chunks of (" + data_item.key + ") could not be replicated: " + error.getMessage());
+                                       }, m_disk);
     }
 
-    private void DefineDataTable()
+    // The wheel only triggers the checkpoint; its fsync and compaction run on the disk writer, so
+    // a slow disk never holds up the request timeouts sharing the wheel.
+    private static Thread NewDiskWriter(Runnable task)
     {
-        this.m_data_table = new TreeMap<>();
-        this.m_data_keys = new HashMap<>();
+        Thread thread = new Thread(task, "disk-writer");
+        thread.setDaemon(true);
+        return thread;
     }
 
-    private void DefinePingVector()
+    private void ScheduleCheckpoint()
     {
-        this.m_ping_vector = new TreeMap<>();
+        m_timers.Schedule(CHECKPOINT_INTERVAL_MS, () -> m_disk.execute(() ->
+        {
+            m_data_table.Checkpoint();
+            ScheduleCheckpoint();
+        }));
     }
 
-    public BigInteger m_id;
+    public NodeId m_id;
     public int m_m_bits;
     public int m_alpha;
+    public int m_k;
     public core.peer.Node m_socket;
     public final int m_heartbeat_interval = 10;
+    public final RingBuffer.WaitStrategy m_wait_strategy = RingBuffer.WaitStrategy.BLOCKING;
+    public final DataStore.Eviction m_eviction = DataStore.Eviction.TINY_LFU;
+    public final boolean m_off_heap_values = true;
+    public final boolean m_persistent = true;
 
     public boolean m_connected;
     public String m_bootstrapped_ip;
@@ -760,9 +1379,44 @@ public class Peer
     public Sender m_sender;
     public Receiver m_receiver;
     public Heartbeat m_heartbeat;
-    public NavigableMap<BigInteger, Boolean> m_ping_vector;
-    public NavigableMap<BigInteger, DataItem> m_data_table;
-    public HashMap<BigInteger, String> m_data_keys;
-    public NavigableMap<BigInteger, NavigableMap<BigInteger, RoutingTableEntry>> m_routing_table;
-    private LinkedBlockingQueue<Lib.Pair<RoutingTableEntry, byte[]>> m_received;
+    public DataStore m_data_table;
+    public ChunkStore m_chunk_store;
+    AntiEntropy m_anti_entropy;
+    HintedHandoff m_hints;
+    Republisher m_republisher;
+    FailureDetector m_detector;
+    public HashMap<NodeId, String> m_data_keys;
+    public KBucket[] m_routing_table;
+    public TimerWheel m_timers;
+    private ExecutorService m_disk;
+    public HybridClock m_clock;
+    public volatile Quorum m_quorum = Quorum.DEFAULT;
+    public CorrelationTable m_requests;
+    private NodeId[] m_bucket_ids;
+    private RoutingSnapshot m_routing_snapshot;
+    private List<RoutingTableEntry> m_restored_peers;
+    private CompletableFuture<?> m_replications;
+    private RingBuffer m_pipeline;
+    private final int PIPELINE_CAPACITY = 1 << 12;
+    private final int MAX_PENDING_REQUESTS = 1 << 12;
+    private final int TIMER_SLOTS = 512;
+    private final long TIMER_TICK_MS = 100;
+    private final long REQUEST_TIMEOUT_MS = 10_000;
+    private final long PROBE_TIMEOUT_MS = 2_000;
+    private final long LOOKUP_TIMEOUT_MS = 2_000;
+    private final long STORE_TIMEOUT_MS = 2_000;
+    private final int MAX_FALLBACKS = 3;
+    private final int BUCKET_CAPACITY = 20;
+    private final long CACHE_TTL_MS = 60 * 60 * 1000;
+    private final long DATA_TTL_MS = 24 * 60 * 60 * 1000;
+    private final long REPUBLISH_INTERVAL_MS = 60 * 60 * 1000;
+    private final long DATA_BUDGET_BYTES = 64L << 20;
+    private final long CHECKPOINT_INTERVAL_MS = 60_000;
+    private final long DISK_SHUTDOWN_TIMEOUT_MS = 5_000;
+    private final int CHUNK_SIZE = 256 << 10;
+    private final int MAX_INLINE_VALUE = 1 << 10;
+    private final long MAX_READ_VALUE = 64L << 20;
+    private final long ROUTING_SNAPSHOT_INTERVAL_MS = 30_000;
+    private final long MAX_RESTORED_AGE_MS = 24 * 60 * 60 * 1000;
+    private final String DATA_DIRECTORY = "data";
 }
@@ -0,0 +1,42 @@
+package core.peer;
+
+/*
+ * Replication settings for a write or a read: a key is held by the n nodes closest to it, a
+ * write completes once w of them acknowledge it and a read once r of them answer. With r + w > n
+ * every read overlaps the latest write; lower values answer sooner. While fewer than n nodes are
+ * known, all the known ones are the replicas and r and w are capped at their count.
+ */
+public class Quorum
+{
+    public Quorum(int n, int r, int w)
+    {
+        if(n < 1 || r < 1 || w < 1 || r > n || w > n)
+            throw new IllegalArgumentException("Quorum needs 1 <= r, w <= n, got n=" + n + " r=" + r + " w=" + w);
+
+        this.n = n;
+        this.r = r;
+        this.w = w;
+    }
+
+    public Quorum WithReads(int r)
+    {
+        return new Quorum(n, r, w);
+    }
+
+    public Quorum WithWrites(int w)
+    {
+        return new Quorum(n, r, w);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "N=" + n + " R=" + r + " W=" + w;
+    }
+
+    public final int n;
+    public final int r;
+    public final int w;
+
+    public static final Quorum DEFAULT = new Quorum(3, 2, 2);
+}
@@ -0,0 +1,118 @@
+package core.peer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Expiry and republishing of data items, driven by the timer wheel rather than by scanning the
+ * data table (Kademlia 2.5). Every copy carries an expiry and is removed once it passes, so a
+ * node only holds what its publisher still keeps alive. The publisher, the node whose clock
+ * stamped the item's version, republishes it every interval to the replicas of its key with a
+ * fresh expiry, unless the item was published or received within the interval anyway. The
+ * publisher's own copy never expires.
+ *
+ * Each tracked item has one timer at a time. When it fires for an item that has since been
+ * replaced or removed it is simply dropped, the newer item being tracked by its own timer; when
+ * the item's expiry was pushed back meanwhile it is set again for the time remaining.
+ */
+class Republisher
+{
+    Republisher(Peer peer, long ttl_ms, long interval_ms)
+    {
+        this.m_peer = peer;
+        this.m_ttl_ms = ttl_ms;
+        this.m_interval_ms = interval_ms;
+        this.m_republished = new AtomicLong(0);
+        this.m_skipped = new AtomicLong(0);
+        this.m_expired = new AtomicLong(0);
+    }
+
+    // Starts the timer for an item newly held here.
+    void Track(NodeId key, Peer.DataItem item)
+    {
+        if(IsPublisher(item) && !item.IsCached())
+            ScheduleRepublish(key, item);
+        else if(item.expiry_ms != 0)
+            ScheduleExpiry(key, item);
+    }
+
+    // Fresh expiry for an item published here now.
+    void Publish(Peer.DataItem item)
+    {
+        item.SetTimeToLive(m_ttl_ms);
+        item.refreshed_ms = System.currentTimeMillis();
+    }
+
+    long TimeToLive()
+    {
+        return m_ttl_ms;
+    }
+
+    // True when this node stamped the item's version, i.e. it published it.
+    boolean IsPublisher(Peer.DataItem item)
+    {
+        return HybridClock.NodeOf(item.version) == m_peer.m_clock.Node();
+    }
+
+    void PrintStats()
+    {
+        System.out.println("Republisher\n----------------");
+        System.out.format("%-25s [%d]\n", "Republished:", m_republished.get());
+        System.out.format("%-25s [%d]\n", "Republish Skipped:", m_skipped.get());
+        System.out.format("%-25s [%d]\n", "Expired:", m_expired.get());
+        System.out.println("----------------");
+    }
+
+    private void ScheduleExpiry(NodeId key, Peer.DataItem item)
+    {
+        m_peer.m_timers.Schedule(item.expiry_ms - System.currentTimeMillis(), () ->
+        {
+            if(item.expiry_ms > System.currentTimeMillis())
+                ScheduleExpiry(key, item);
+            else if(m_peer.ExpireDataItem(key, item))
+                m_expired.incrementAndGet();
+        });
+    }
+
+    // The first republish waits at least a heartbeat, so items recovered at startup go out once
+    // the node has rejoined.
+    private void ScheduleRepublish(NodeId key, Peer.DataItem item)
+    {
+        long due = Math.max(m_peer.m_heartbeat_interval * 1000L, item.refreshed_ms + m_interval_ms - System.currentTimeMillis());
+        m_peer.m_timers.Schedule(due, () -> Republish(key, item));
+    }
+
+    private void Republish(NodeId key, Peer.DataItem item)
+    {
+        if(m_peer.m_data_table.Peek(key) != item)
+            return;
+
+        if(System.currentTimeMillis() - item.refreshed_ms < m_interval_ms)
+        {
+            m_skipped.incrementAndGet();
+            ScheduleRepublish(key, item);
+            return;
+        }
+
+        Publish(item);
+
+        try
+        {
+            for(var peer : m_peer.ReplicasOf(key))
+                m_peer.SendDataItem(peer, item);
+            m_republished.incrementAndGet();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        ScheduleRepublish(key, item);
+    }
+
+    private final Peer m_peer;
+    private final long m_ttl_ms;
+    private final long m_interval_ms;
+    private final AtomicLong m_republished;
+    private final AtomicLong m_skipped;
+    private final AtomicLong m_expired;
+}
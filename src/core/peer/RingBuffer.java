@@ -0,0 +1,252 @@
+package core.peer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Bounded multi-producer/multi-consumer ring of received frames, handing each one from the
+ * socket reader straight to a handler thread. Slots are allocated once and reused; a slot's
+ * sequence tells producers and consumers whose turn it is. Publishing never blocks: when the
+ * ring is full the frame is dropped, as the socket would have done.
+ */
+public class RingBuffer
+{
+    public enum WaitStrategy
+    {
+        BLOCKING,   // park on a condition until a producer signals, lowest CPU
+        SLEEPING,   // spin, yield, then park for short intervals
+        YIELDING,   // spin, then yield the CPU between checks
+        BUSY_SPIN   // never give up the CPU, lowest latency
+    }
+
+    public static class Event
+    {
+        public Peer.RoutingTableEntry peer_info;
+        public Frame frame;
+        public long published_ns;
+
+        public void Clear()
+        {
+            this.peer_info = null;
+            this.frame = null;
+        }
+    }
+
+    public RingBuffer(int capacity, WaitStrategy strategy)
+    {
+        assert Integer.bitCount(capacity) == 1;
+
+        this.m_strategy = strategy;
+        this.m_mask = capacity - 1;
+        this.m_slots = new Event[capacity];
+        this.m_sequences = new AtomicLongArray(capacity);
+
+        for(int i = 0; i < capacity; i++)
+        {
+            this.m_slots[i] = new Event();
+            this.m_sequences.set(i, i);
+        }
+
+        this.m_head = new AtomicLong(0);
+        this.m_tail = new AtomicLong(0);
+        this.m_lock = new ReentrantLock();
+        this.m_not_empty = m_lock.newCondition();
+        this.m_waiters = new AtomicInteger(0);
+        this.m_published = new LongAdder();
+        this.m_dropped = new LongAdder();
+        this.m_handoff_total_ns = new LongAdder();
+        this.m_handoff_max_ns = new AtomicLong(0);
+        this.m_closed = false;
+    }
+
+    public boolean Publish(Peer.RoutingTableEntry peer_info, Frame frame)
+    {
+        long pos = m_head.get();
+        int idx;
+
+        while(true)
+        {
+            idx = (int) (pos & m_mask);
+            long diff = m_sequences.get(idx) - pos;
+
+            if(diff == 0)
+            {
+                if(m_head.compareAndSet(pos, pos + 1))
+                    break;
+                pos = m_head.get();
+            }
+            else if(diff < 0)
+            {
+                m_dropped.increment();
+                return false;
+            }
+            else pos = m_head.get();
+        }
+
+        Event slot = m_slots[idx];
+        slot.peer_info = peer_info;
+        slot.frame = frame;
+        slot.published_ns = System.nanoTime();
+        m_sequences.set(idx, pos + 1);
+
+        m_published.increment();
+        SignalWaiters();
+        return true;
+    }
+
+    // Copies the next frame into the caller's event, waiting according to the strategy.
+    // Returns false once the ring has been closed.
+    public boolean Take(Event into) throws InterruptedException
+    {
+        int idle = 0;
+
+        while(!m_closed)
+        {
+            long pos = m_tail.get();
+            int idx = (int) (pos & m_mask);
+            long diff = m_sequences.get(idx) - (pos + 1);
+
+            if(diff == 0)
+            {
+                if(m_tail.compareAndSet(pos, pos + 1))
+                {
+                    Event slot = m_slots[idx];
+                    into.peer_info = slot.peer_info;
+                    into.frame = slot.frame;
+                    into.published_ns = slot.published_ns;
+                    slot.Clear();
+                    m_sequences.set(idx, pos + m_slots.length);
+
+                    RecordHandoff(System.nanoTime() - into.published_ns);
+                    return true;
+                }
+            }
+            else if(diff < 0)
+            {
+                Wait(idle++);
+            }
+        }
+        return false;
+    }
+
+    public void Close()
+    {
+        this.m_closed = true;
+
+        m_lock.lock();
+        try { m_not_empty.signalAll(); }
+        finally { m_lock.unlock(); }
+    }
+
+    public long Depth()
+    {
+        return Math.max(0, m_head.get() - m_tail.get());
+    }
+
+    public void PrintStats()
+    {
+        long published = m_published.sum();
+        long consumed = m_tail.get();
+
+        System.out.println("Receive Pipeline\n----------------");
+        System.out.format("%-25s [%s]\n", "Wait Strategy:", m_strategy);
+        System.out.format("%-25s [%d/%d]\n", "Queue Depth:", Depth(), m_slots.length);
+        System.out.format("%-25s [%d]\n", "Published:", published);
+        System.out.format("%-25s [%d]\n", "Dropped (full):", m_dropped.sum());
+        System.out.format("%-25s [%.1f us]\n", "Mean Handoff Latency:", (consumed == 0) ? 0.0 : m_handoff_total_ns.sum() / 1e3 / consumed);
+        System.out.format("%-25s [%.1f us]\n", "Max Handoff Latency:", m_handoff_max_ns.get() / 1e3);
+        System.out.println("----------------");
+    }
+
+    private void Wait(int idle) throws InterruptedException
+    {
+        switch (m_strategy)
+        {
+            case BUSY_SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELDING:
+                if(idle < SPIN_TRIES) Thread.onSpinWait();
+                else Thread.yield();
+                break;
+            case SLEEPING:
+                if(idle < SPIN_TRIES) Thread.onSpinWait();
+                else if(idle < SPIN_TRIES * 2) Thread.yield();
+                else LockSupport.parkNanos(SLEEP_NS);
+                break;
+            case BLOCKING:
+                if(idle < SPIN_TRIES)
+                {
+                    Thread.onSpinWait();
+                    break;
+                }
+
+                m_lock.lock();
+                try
+                {
+                    m_waiters.incrementAndGet();
+                    if(IsEmpty() && !m_closed)
+                        m_not_empty.await(BLOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+                finally
+                {
+                    m_waiters.decrementAndGet();
+                    m_lock.unlock();
+                }
+                break;
+        }
+
+        if(Thread.interrupted())
+            throw new InterruptedException();
+    }
+
+    private void SignalWaiters()
+    {
+        if(m_strategy == WaitStrategy.BLOCKING && m_waiters.get() > 0)
+        {
+            m_lock.lock();
+            try { m_not_empty.signal(); }
+            finally { m_lock.unlock(); }
+        }
+    }
+
+    private boolean IsEmpty()
+    {
+        long pos = m_tail.get();
+        return m_sequences.get((int) (pos & m_mask)) - (pos + 1) < 0;
+    }
+
+    private void RecordHandoff(long latency_ns)
+    {
+        m_handoff_total_ns.add(latency_ns);
+
+        long max = m_handoff_max_ns.get();
+        while(latency_ns > max && !m_handoff_max_ns.compareAndSet(max, latency_ns))
+            max = m_handoff_max_ns.get();
+    }
+
+    private final WaitStrategy m_strategy;
+    private final int m_mask;
+    private final Event[] m_slots;
+    private final AtomicLongArray m_sequences;
+    private final AtomicLong m_head;
+    private final AtomicLong m_tail;
+    private final ReentrantLock m_lock;
+    private final Condition m_not_empty;
+    private final AtomicInteger m_waiters;
+    private final LongAdder m_published;
+    private final LongAdder m_dropped;
+    private final LongAdder m_handoff_total_ns;
+    private final AtomicLong m_handoff_max_ns;
+    private volatile boolean m_closed;
+
+    private static final int SPIN_TRIES = 100;
+    private static final long SLEEP_NS = 100_000;
+    private static final long BLOCK_TIMEOUT_MS = 100;
+}
@@ -0,0 +1,150 @@
+package core.peer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/*
+ * Memory-mapped copy of the routing table, rewritten periodically so a restarted node can refill
+ * its buckets straight away instead of rediscovering the network. Entries are fixed-size slots
+ * written in least to most recently seen order per bucket; the header, count and CRC, is written
+ * last, so a snapshot torn by a crash fails its CRC and is ignored.
+ *
+ * Header: [magic int][written at long][count int][crc int]
+ * Slot:   [id long][last seen long][port int][address length byte][address 16][nick length byte][nick 40]
+ */
+public class RoutingSnapshot
+{
+    public RoutingSnapshot(Path directory, int capacity) throws IOException
+    {
+        Files.createDirectories(directory);
+
+        this.m_capacity = capacity;
+
+        try(FileChannel channel = FileChannel.open(directory.resolve("routing.snap"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            this.m_map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * SLOT);
+        }
+    }
+
+    public synchronized void Write(KBucket[] routing_table)
+    {
+        int count = 0;
+
+        for(var bucket : routing_table)
+        {
+            for(var entry : bucket.Entries())
+            {
+                if(count == m_capacity)
+                    break;
+                if(WriteSlot(HEADER + count * SLOT, entry))
+                    count++;
+            }
+        }
+
+        m_map.putInt(0, 0);
+        m_map.putLong(Integer.BYTES, System.currentTimeMillis());
+        m_map.putInt(Integer.BYTES + Long.BYTES, count);
+        m_map.putInt(Integer.BYTES + Long.BYTES + Integer.BYTES, Checksum(count));
+        m_map.putInt(0, MAGIC_VALUE);
+        m_map.force();
+    }
+
+    // Entries last seen within max_age_ms, in the order they were written, or none if the
+    // snapshot is missing or fails its CRC.
+    public synchronized List<Peer.RoutingTableEntry> Read(long max_age_ms)
+    {
+        List<Peer.RoutingTableEntry> entries = new ArrayList<>();
+        int count = m_map.getInt(Integer.BYTES + Long.BYTES);
+
+        if(m_map.getInt(0) != MAGIC_VALUE || count < 0 || count > m_capacity || m_map.getInt(Integer.BYTES + Long.BYTES + Integer.BYTES) != Checksum(count))
+            return entries;
+
+        long oldest = System.currentTimeMillis() - max_age_ms;
+
+        for(int i = 0; i < count; i++)
+        {
+            Peer.RoutingTableEntry entry = ReadSlot(HEADER + i * SLOT);
+
+            if(entry != null && entry.last_seen_ms >= oldest)
+                entries.add(entry);
+        }
+        return entries;
+    }
+
+    private boolean WriteSlot(int offset, Peer.RoutingTableEntry entry)
+    {
+        byte[] address;
+
+        try
+        {
+            address = InetAddress.getByName(entry.ip_address).getAddress();
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+
+        byte[] nick = entry.nick_name.getBytes(StandardCharsets.UTF_8);
+        int nick_length = Math.min(nick.length, MAX_NICK);
+
+        m_map.putLong(offset, entry.id.Value());
+        m_map.putLong(offset + 8, entry.last_seen_ms);
+        m_map.putInt(offset + 16, entry.port);
+        m_map.put(offset + 20, (byte) address.length);
+        m_map.put(offset + 21, address);
+        m_map.put(offset + 37, (byte) nick_length);
+        m_map.put(offset + 38, nick, 0, nick_length);
+        return true;
+    }
+
+    private Peer.RoutingTableEntry ReadSlot(int offset)
+    {
+        int address_length = m_map.get(offset + 20);
+        int nick_length = m_map.get(offset + 37);
+
+        if((address_length != 4 && address_length != 16) || nick_length < 0 || nick_length > MAX_NICK)
+            return null;
+
+        byte[] address = new byte[address_length];
+        byte[] nick = new byte[nick_length];
+        m_map.get(offset + 21, address);
+        m_map.get(offset + 38, nick);
+
+        try
+        {
+            Peer.RoutingTableEntry entry = new Peer.RoutingTableEntry(new String(nick, StandardCharsets.UTF_8), new NodeId(m_map.getLong(offset)),
+                                                                      InetAddress.getByAddress(address).getHostAddress(), m_map.getInt(offset + 16));
+            entry.last_seen_ms = m_map.getLong(offset + 8);
+            return entry;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    private int Checksum(int count)
+    {
+        CRC32C crc = new CRC32C();
+        crc.update(m_map.slice(Integer.BYTES, Long.BYTES + Integer.BYTES));
+        crc.update(m_map.slice(HEADER, count * SLOT));
+        return (int) crc.getValue();
+    }
+
+    private final int m_capacity;
+    private final MappedByteBuffer m_map;
+
+    private static final int MAGIC_VALUE = 0x5EED7AB1;
+    private static final int HEADER = Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+    private static final int MAX_NICK = 40;
+    private static final int SLOT = 38 + MAX_NICK + 2;
+}
@@ -3,12 +3,14 @@ package core.peer;
 import core.Lib;
 
 import java.io.IOException;
-import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 class Sender extends Runner
 {
@@ -18,7 +20,13 @@ class Sender extends Runner
         m_peer = peer;
         this.m_sender = send_peer;
         this.m_queue = new LinkedBlockingQueue<>();
-        this.m_send_count = BigInteger.valueOf(0);
+        this.m_send_count = new AtomicLong(0);
+        this.m_batch = new ArrayList<>(MAX_BATCH);
+        this.m_destinations = new LinkedHashMap<>();
+        this.m_datagram = send_peer.AllocateBuffer(MAX_DATAGRAM_SIZE);
+        this.m_messages_sent = new AtomicLong(0);
+        this.m_datagrams_sent = new AtomicLong(0);
+        this.m_started_ns = System.nanoTime();
     }
 
     @Override
@@ -34,21 +42,10 @@ class Sender extends Runner
 
                 if (current_item != null)
                 {
-                    if(current_item.first != null)
-                    {
-                        // Join by known IP
-                        String ip_address = current_item.first.ip_address;
-                        int port = current_item.first.port;
-                        byte[] message = AddMagicValuePrefix(current_item.second);
-                        this.m_sender.SendPacket(message, ip_address, port);
-                    } else
-                    {
-                        // Join by unknown IP (broadcast)
-                        m_peer.m_socket.m_socket.setBroadcast(true);
-                        byte[] message = AddMagicValuePrefix(current_item.second);
-                        SendToAllBroadcastAddresses(message);
-                        m_peer.m_socket.m_socket.setBroadcast(false);
-                    }
+                    m_batch.add(current_item);
+                    m_queue.drainTo(m_batch, MAX_BATCH - 1);
+                    SendBatch();
+                    m_batch.clear();
                 }
             }
             catch (IOException | InterruptedException e)
@@ -58,24 +55,24 @@ class Sender extends Runner
         }
     }
 
-    public Lib.Pair<Semaphore, Receiver.Packet> CreateReceivedItem(byte[] payload)
+    public void PrintStats()
     {
-        String[] tokens = new String(payload).replace("\0", "").split(" ");
-        BigInteger command_count = new BigInteger(tokens[0].split(":")[1]);
+        long messages = m_messages_sent.get();
+        long datagrams = m_datagrams_sent.get();
+        double elapsed = (System.nanoTime() - m_started_ns) / 1e9;
 
-        m_peer.m_receiver.AddReceivedItem(command_count);
-        return m_peer.m_receiver.GetReceivedPackets().get(command_count);
+        System.out.println("Sender\n----------------");
+        System.out.format("%-25s [%d]\n", "Queued:", m_queue.size());
+        System.out.format("%-25s [%d]\n", "Messages Sent:", messages);
+        System.out.format("%-25s [%d]\n", "Datagrams Sent:", datagrams);
+        System.out.format("%-25s [%.1f]\n", "Messages per Second:", messages / elapsed);
+        System.out.format("%-25s [%.3f]\n", "Syscalls per Message:", (messages == 0) ? 0.0 : (double) datagrams / messages);
+        System.out.println("----------------");
     }
 
-    public BigInteger GetAndIncrementSendCount()
+    public long GetAndIncrementSendCount()
     {
-        BigInteger ret;
-        synchronized (this)
-        {
-            ret = this.m_send_count;
-            this.m_send_count = this.m_send_count.add(BigInteger.valueOf(1));
-        }
-        return ret;
+        return m_send_count.getAndIncrement();
     }
 
     public void AddSendItem(Peer.RoutingTableEntry p, byte[] s) throws InterruptedException
@@ -83,6 +80,61 @@ class Sender extends Runner
         m_queue.put(new Lib.Pair<>(p, s));
     }
 
+    // Frames to the same destination are packed back to back into datagrams of up to
+    // MAX_DATAGRAM_SIZE; the receiver decodes them one after another.
+    private void SendBatch() throws IOException
+    {
+        for(var item : m_batch)
+        {
+            if(item.first != null)
+            {
+                // Join by known IP
+                m_destinations.computeIfAbsent(item.first.GetAddress(), k -> new ArrayList<>()).add(item.second);
+            } else
+            {
+                // Join by unknown IP (broadcast)
+                m_peer.m_socket.SetBroadcast(true);
+                SendToAllBroadcastAddresses(item.second);
+                m_peer.m_socket.SetBroadcast(false);
+                m_messages_sent.incrementAndGet();
+            }
+        }
+
+        for(var destination : m_destinations.entrySet())
+        {
+            InetSocketAddress address = destination.getKey();
+            m_datagram.clear();
+
+            for(byte[] frame : destination.getValue())
+            {
+                if(frame.length > m_datagram.remaining())
+                    FlushDatagram(address);
+
+                if(frame.length > m_datagram.capacity())
+                {
+                    this.m_sender.SendPacket(frame, address);
+                    m_datagrams_sent.incrementAndGet();
+                } else m_datagram.put(frame);
+            }
+
+            FlushDatagram(address);
+            m_messages_sent.addAndGet(destination.getValue().size());
+        }
+
+        m_destinations.clear();
+    }
+
+    private void FlushDatagram(InetSocketAddress address) throws IOException
+    {
+        if(m_datagram.position() == 0)
+            return;
+
+        m_datagram.flip();
+        this.m_sender.SendPacket(m_datagram, address);
+        m_datagrams_sent.incrementAndGet();
+        m_datagram.clear();
+    }
+
     private void SendToAllBroadcastAddresses(byte[] message) throws IOException
     {
         var interfaces = NetworkInterface.getNetworkInterfaces();
@@ -99,7 +151,15 @@ class Sender extends Runner
     }
 
     private Peer m_peer;
-    private BigInteger m_send_count;
+    private final AtomicLong m_send_count;
     private final core.peer.Node m_sender;
     private final LinkedBlockingQueue<Lib.Pair<Peer.RoutingTableEntry, byte[]>> m_queue;
+    private final ArrayList<Lib.Pair<Peer.RoutingTableEntry, byte[]>> m_batch;
+    private final LinkedHashMap<InetSocketAddress, ArrayList<byte[]>> m_destinations;
+    private final ByteBuffer m_datagram;
+    private final AtomicLong m_messages_sent;
+    private final AtomicLong m_datagrams_sent;
+    private final long m_started_ns;
+    private final int MAX_BATCH = 256;
+    private final int MAX_DATAGRAM_SIZE = 1400;
 }
@@ -0,0 +1,75 @@
+package core.peer;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+class SocketNode extends Node
+{
+    SocketNode()
+    {
+        this.m_pool = new BufferPool(MAX_RECEIVE_SIZE, POOLED_BUFFERS, false);
+    }
+
+    @Override
+    public Datagram ReceivePacket() throws IOException
+    {
+        ByteBuffer buffer = m_pool.Acquire();
+        DatagramPacket receive = new DatagramPacket(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+
+        try
+        {
+            m_socket.receive(receive);
+        }
+        catch (SocketTimeoutException e)
+        {
+            m_pool.Release(buffer);
+            return null;
+        }
+
+        buffer.limit(receive.getLength());
+        return new Datagram(m_pool, buffer, (InetSocketAddress) receive.getSocketAddress());
+    }
+
+    @Override
+    public void SendPacket(ByteBuffer input, InetSocketAddress address) throws IOException
+    {
+        assert input.hasRemaining();
+
+        m_socket.send(new DatagramPacket(input.array(), input.arrayOffset() + input.position(), input.remaining(), address));
+    }
+
+    @Override
+    public ByteBuffer AllocateBuffer(int size)
+    {
+        return ByteBuffer.allocate(size);
+    }
+
+    @Override
+    public void SetBroadcast(boolean state) throws SocketException
+    {
+        m_socket.setBroadcast(state);
+    }
+
+    @Override
+    public void Close()
+    {
+        m_socket.close();
+    }
+
+    @Override
+    protected void Open(int port) throws IOException
+    {
+        this.m_socket = new DatagramSocket(port);
+        this.m_socket.setSoTimeout(RECEIVE_TIMEOUT);
+    }
+
+    @Override
+    protected int LocalPort()
+    {
+        return m_socket.getLocalPort();
+    }
+
+    private DatagramSocket m_socket;
+    private final BufferPool m_pool;
+}
@@ -0,0 +1,143 @@
+package core.peer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Hashed timer wheel. Scheduling and cancelling are O(1); a single thread advances the wheel
+ * one slot per tick and runs the tasks that fall due, so a timeout costs nothing until it
+ * fires. Tasks run on the wheel's thread and should be short.
+ */
+public class TimerWheel implements Runnable
+{
+    public static class Timeout
+    {
+        Timeout(Runnable task, long deadline_tick)
+        {
+            this.m_task = task;
+            this.m_deadline_tick = deadline_tick;
+        }
+
+        public void Cancel()
+        {
+            this.m_cancelled = true;
+        }
+
+        public boolean IsCancelled()
+        {
+            return m_cancelled;
+        }
+
+        private final Runnable m_task;
+        private final long m_deadline_tick;
+        private volatile boolean m_cancelled;
+    }
+
+    public TimerWheel(long tick_ms, int slots)
+    {
+        assert Integer.bitCount(slots) == 1;
+
+        this.m_tick_ms = tick_ms;
+        this.m_mask = slots - 1;
+        this.m_slots = new ArrayList<>(slots);
+        this.m_scheduled = new ConcurrentLinkedQueue<>();
+        this.m_started_ms = System.currentTimeMillis();
+        this.m_running = true;
+
+        for(int i = 0; i < slots; i++)
+            this.m_slots.add(new ArrayList<>());
+
+        Thread thread = new Thread(this, "timer-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Timeout Schedule(long delay_ms, Runnable task)
+    {
+        long deadline_tick = CurrentTick() + Math.max(1, (delay_ms + m_tick_ms - 1) / m_tick_ms);
+        Timeout timeout = new Timeout(task, deadline_tick);
+
+        m_scheduled.add(timeout);
+        return timeout;
+    }
+
+    public void Stop()
+    {
+        this.m_running = false;
+    }
+
+    @Override
+    public void run()
+    {
+        long tick = CurrentTick();
+
+        while(m_running)
+        {
+            try
+            {
+                long sleep = (tick + 1) * m_tick_ms - (System.currentTimeMillis() - m_started_ms);
+                if(sleep > 0)
+                    Thread.sleep(sleep);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            tick++;
+            TransferScheduled();
+            Expire(tick);
+        }
+    }
+
+    private void TransferScheduled()
+    {
+        Timeout timeout;
+        while((timeout = m_scheduled.poll()) != null)
+        {
+            if(!timeout.m_cancelled)
+                m_slots.get((int) (timeout.m_deadline_tick & m_mask)).add(timeout);
+        }
+    }
+
+    private void Expire(long tick)
+    {
+        Iterator<Timeout> it = m_slots.get((int) (tick & m_mask)).iterator();
+
+        while(it.hasNext())
+        {
+            Timeout timeout = it.next();
+
+            if(timeout.m_cancelled)
+            {
+                it.remove();
+            }
+            else if(timeout.m_deadline_tick <= tick)
+            {
+                it.remove();
+                try
+                {
+                    timeout.m_task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    System.out.println("Error: timer task failed (" + e + ")");
+                }
+            }
+        }
+    }
+
+    private long CurrentTick()
+    {
+        return (System.currentTimeMillis() - m_started_ms) / m_tick_ms;
+    }
+
+    private final long m_tick_ms;
+    private final int m_mask;
+    private final List<List<Timeout>> m_slots;
+    private final ConcurrentLinkedQueue<Timeout> m_scheduled;
+    private final long m_started_ms;
+    private volatile boolean m_running;
+}
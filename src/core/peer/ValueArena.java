@@ -0,0 +1,152 @@
+package core.peer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Off-heap storage for data item values. Direct memory is reserved in 1 MiB slabs, each cut into
+ * chunks of one power-of-two size class between 64 bytes and 64 KiB; a value takes the smallest
+ * chunk it fits in and the chunk goes back on its class's free list when the value is removed.
+ * The heap only holds the chunk handles, so stored data adds neither to heap size nor to the
+ * work the collector does. Values larger than the biggest class, or arriving once the capacity
+ * is reserved, are refused and stay on the heap. Interned values are shared: storing the same
+ * bytes under several keys takes one chunk, freed when the last item holding it lets go.
+ */
+public class ValueArena
+{
+    private static class Interned
+    {
+        Interned(ByteBuffer chunk)
+        {
+            this.chunk = chunk;
+            this.references = 1;
+        }
+
+        final ByteBuffer chunk;
+        int references;
+    }
+
+    public ValueArena(long capacity_bytes)
+    {
+        this.m_capacity_bytes = capacity_bytes;
+        this.m_free = new ArrayList<>(CLASSES);
+        this.m_interned = new HashMap<>();
+
+        for(int i = 0; i < CLASSES; i++)
+            this.m_free.add(new ArrayDeque<>());
+    }
+
+    // Returns a chunk whose limit is the requested length, or null if the value cannot be held.
+    public synchronized ByteBuffer Allocate(int length)
+    {
+        if(length <= 0 || length > MAX_CHUNK)
+            return null;
+
+        int size_class = SizeClass(length);
+        ArrayDeque<ByteBuffer> free = m_free.get(size_class);
+
+        if(free.isEmpty() && !ReserveSlab(size_class))
+            return null;
+
+        ByteBuffer chunk = free.pop();
+        chunk.clear().limit(length);
+        m_used_bytes += chunk.capacity();
+        return chunk;
+    }
+
+    // Returns a chunk holding the value, the one already holding the same bytes if there is one.
+    // Interned chunks are keyed by their content and must never be written to.
+    public synchronized ByteBuffer Intern(byte[] value)
+    {
+        Interned interned = m_interned.get(ByteBuffer.wrap(value));
+
+        if(interned != null)
+        {
+            interned.references++;
+            m_shared_bytes += value.length;
+            return interned.chunk;
+        }
+
+        ByteBuffer chunk = Allocate(value.length);
+
+        if(chunk != null)
+        {
+            chunk.put(0, value);
+            m_interned.put(chunk, new Interned(chunk));
+        }
+        return chunk;
+    }
+
+    // Drops one reference to an interned chunk, freeing it with the last.
+    public synchronized void Release(ByteBuffer chunk)
+    {
+        Interned interned = m_interned.get(chunk);
+
+        if(interned == null || interned.chunk != chunk)
+        {
+            Free(chunk);
+            return;
+        }
+
+        if(--interned.references == 0)
+        {
+            m_interned.remove(chunk);
+            Free(chunk);
+        }
+        else m_shared_bytes -= chunk.remaining();
+    }
+
+    public synchronized void Free(ByteBuffer chunk)
+    {
+        m_used_bytes -= chunk.capacity();
+        m_free.get(SizeClass(chunk.capacity())).push(chunk);
+    }
+
+    public synchronized void PrintStats()
+    {
+        System.out.println("Value Arena\n----------------");
+        System.out.format("%-25s [%d/%d]\n", "Reserved Bytes:", m_reserved_bytes, m_capacity_bytes);
+        System.out.format("%-25s [%d]\n", "Used Bytes:", m_used_bytes);
+        System.out.format("%-25s [%d]\n", "Interned Values:", m_interned.size());
+        System.out.format("%-25s [%d]\n", "Deduplicated Bytes:", m_shared_bytes);
+        System.out.format("%-25s [%d]\n", "Slabs:", m_reserved_bytes / SLAB_SIZE);
+        System.out.println("----------------");
+    }
+
+    private boolean ReserveSlab(int size_class)
+    {
+        if(m_reserved_bytes + SLAB_SIZE > m_capacity_bytes)
+            return false;
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        int chunk_size = MIN_CHUNK << size_class;
+
+        for(int offset = 0; offset + chunk_size <= SLAB_SIZE; offset += chunk_size)
+            m_free.get(size_class).push(slab.slice(offset, chunk_size));
+
+        m_reserved_bytes += SLAB_SIZE;
+        return true;
+    }
+
+    private static int SizeClass(int length)
+    {
+        int rounded = Math.max(MIN_CHUNK, length);
+        return (32 - Integer.numberOfLeadingZeros(rounded - 1)) - MIN_CHUNK_SHIFT;
+    }
+
+    private final long m_capacity_bytes;
+    private final List<ArrayDeque<ByteBuffer>> m_free;
+    private final HashMap<ByteBuffer, Interned> m_interned;
+    private long m_reserved_bytes;
+    private long m_used_bytes;
+    private long m_shared_bytes;
+
+    private static final int MIN_CHUNK_SHIFT = 6;
+    private static final int MIN_CHUNK = 1 << MIN_CHUNK_SHIFT;
+    private static final int MAX_CHUNK = 1 << 16;
+    private static final int CLASSES = 16 - MIN_CHUNK_SHIFT + 1;
+    private static final int SLAB_SIZE = 1 << 20;
+}